@@ -0,0 +1,170 @@
+import java.util.Random;
+
+/**
+ * Checks TCPchecksum against the original byte at a time checksum and measures both.
+ * -- equivalence: random packets of every length up to the largest segment, both with and without a valid checksum stored,
+ *    and random timestamp changes applied with the incremental update must still validate.
+ * -- timing: ns per packet for the original loop, the wide sum and the incremental timestamp update.
+ * Usage: java ChecksumBench [packetLength] [iterations]
+ */
+public class ChecksumBench {
+
+    public static void main(String[] args) {
+        int packetLength = args.length > 0 ? Integer.parseInt(args[0]) : 1424;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+        verify();
+
+        byte[] packet = new byte[packetLength];
+        new Random(640).nextBytes(packet);
+
+        // Warm up all three so the numbers are for compiled code
+        runOriginal(packet, iterations / 10);
+        runWide(packet, iterations / 10);
+        runIncremental(packet, iterations / 10);
+
+        long start = System.nanoTime();
+        long result = runOriginal(packet, iterations);
+        report("original", System.nanoTime() - start, iterations, result);
+
+        start = System.nanoTime();
+        result = runWide(packet, iterations);
+        report("wide", System.nanoTime() - start, iterations, result);
+
+        start = System.nanoTime();
+        result = runIncremental(packet, iterations);
+        report("update", System.nanoTime() - start, iterations, result);
+    }
+
+    private static void verify() {
+        Random random = new Random(640);
+        int checked = 0;
+        for (int round = 0; round < 20; round++) {
+            for (int length = 24; length <= 1518; length++) {
+                byte[] packet = new byte[length];
+                if (round == 0) {
+                    // All ones stresses the carries
+                    java.util.Arrays.fill(packet, (byte) 0xFF);
+                } else {
+                    random.nextBytes(packet);
+                }
+
+                if (original(packet, length) != TCPchecksum.calculate(packet, length)) {
+                    throw new IllegalStateException("Checksum differs for length " + length + " in round " + round);
+                }
+
+                // Store a valid checksum, the packet must then sum to 0 with both
+                packet[22] = 0;
+                packet[23] = 0;
+                int checksum = TCPchecksum.calculate(packet, length);
+                packet[22] = (byte) (checksum >>> 8);
+                packet[23] = (byte) checksum;
+                if (original(packet, length) != 0 || TCPchecksum.calculate(packet, length) != 0) {
+                    throw new IllegalStateException("Stored checksum does not validate for length " + length);
+                }
+
+                // Change the timestamp and update the checksum incrementally, it must match a full recalculation
+                long oldTimestamp = readLong(packet, 8);
+                long newTimestamp = random.nextLong();
+                writeLong(packet, 8, newTimestamp);
+                int updated = TCPchecksum.updateLong(checksum, oldTimestamp, newTimestamp);
+                packet[22] = (byte) (updated >>> 8);
+                packet[23] = (byte) updated;
+                if (TCPchecksum.calculate(packet, length) != 0) {
+                    throw new IllegalStateException("Incremental update does not validate for length " + length);
+                }
+                checked++;
+            }
+        }
+        System.out.println("Verified " + checked + " packets against the original checksum");
+    }
+
+    private static long runOriginal(byte[] packet, int iterations) {
+        long total = 0;
+        for (int i = 0; i < iterations; i++) {
+            packet[0] = (byte) i;
+            total += original(packet, packet.length);
+        }
+        return total;
+    }
+
+    private static long runWide(byte[] packet, int iterations) {
+        long total = 0;
+        for (int i = 0; i < iterations; i++) {
+            packet[0] = (byte) i;
+            total += TCPchecksum.calculate(packet, packet.length);
+        }
+        return total;
+    }
+
+    private static long runIncremental(byte[] packet, int iterations) {
+        long total = 0;
+        int checksum = TCPchecksum.calculate(packet, packet.length);
+        long timestamp = 0;
+        for (int i = 0; i < iterations; i++) {
+            long next = timestamp + 1000 + i;
+            checksum = TCPchecksum.updateLong(checksum, timestamp, next);
+            timestamp = next;
+            total += checksum;
+        }
+        return total;
+    }
+
+    private static void report(String name, long elapsed, int iterations, long result) {
+        System.out.println(String.format("%-9s %8.1f ns per packet (%d)", name, (double) elapsed / iterations, result & 0xF));
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static void writeLong(byte[] data, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            data[offset + i] = (byte) (value >>> (8 * (7 - i)));
+        }
+    }
+
+    // The checksum as TCPheader originally calculated it, two bytes at a time with the carries moved between them
+    private static int original(byte[] packet, int length) {
+        short checksumArray1 = 0;
+        short checksumArray2 = 0;
+        short byte1 = 0;
+        short byte2 = 0;
+
+        for (int i = 0; i < length; i += 2) {
+            if (i + 1 < length) {
+                byte2 = (short) packet[i + 1];
+                byte2 &= 0x00FF;
+            } else {
+                byte2 = 0;
+            }
+            checksumArray2 += byte2;
+            if (checksumArray2 > 0x00FF) {
+                checksumArray1 += (checksumArray2 & 0xFF00) >>> 8;
+                checksumArray2 &= 0x00FF;
+            }
+            byte1 = (short) packet[i];
+            byte1 &= 0x00FF;
+            checksumArray1 += byte1;
+            if (checksumArray1 > 0x00FF) {
+                checksumArray2 += (checksumArray1 & 0xFF00) >>> 8;
+                checksumArray1 &= 0x00FF;
+            }
+        }
+
+        if (checksumArray2 > 0x00FF) {
+            checksumArray1 += (checksumArray2 & 0xFF00) >>> 8;
+            checksumArray2 &= 0x00FF;
+        }
+        if (checksumArray1 > 0x00FF) {
+            checksumArray2 += (checksumArray1 & 0xFF00) >>> 8;
+            checksumArray1 &= 0x00FF;
+        }
+
+        return ((~checksumArray1 & 0xFF) << 8) | (~checksumArray2 & 0xFF);
+    }
+}
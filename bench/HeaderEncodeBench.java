@@ -0,0 +1,74 @@
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the time and heap allocation for building each data segment on the sender.
+ * -- copy: a new message and header per segment, the data handed over as its own array (the old send path).
+ * -- pooled: the message and packet buffer are recycled from the send window and the header is encoded in place.
+ * Allocation is read from the JVM's per thread allocation counter, so it counts every byte the loop puts on the heap.
+ * Usage: java HeaderEncodeBench [dataLength] [segments]
+ */
+public class HeaderEncodeBench {
+
+    public static void main(String[] args) {
+        int dataLength = args.length > 0 ? Integer.parseInt(args[0]) : 1400;
+        int segments = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+        // Warm up both paths so the numbers are for compiled code
+        runCopy(dataLength, segments / 10);
+        runPooled(dataLength, segments / 10);
+
+        report("copy", dataLength, segments, true);
+        report("pooled", dataLength, segments, false);
+    }
+
+    private static void report(String name, int dataLength, int segments, boolean copy) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        if (copy) {
+            runCopy(dataLength, segments);
+        } else {
+            runPooled(dataLength, segments);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        System.out.println(String.format("%-8s %8.1f ns per segment %10.1f bytes allocated per segment",
+            name, (double) elapsed / segments, (double) allocated / segments));
+    }
+
+    // Old path, a new message built from a freshly read data array for every segment
+    private static long runCopy(int dataLength, int segments) {
+        long checksums = 0;
+        int sequence = 1;
+        for (int i = 0; i < segments; i++) {
+            byte[] data = new byte[dataLength];
+            TCPmessageStatus message = new TCPmessageStatus(0, 0);
+            message.setDataMessage(sequence, 1, data);
+            message.resetMessage();
+            checksums += message.getMessage()[22];
+            sequence += dataLength;
+        }
+        return checksums;
+    }
+
+    // New path, messages come back out of the send window and are encoded in place
+    private static long runPooled(int dataLength, int segments) {
+        long checksums = 0;
+        int sequence = 1;
+        TCPsendWindow window = new TCPsendWindow(64, dataLength);
+        for (int i = 0; i < segments; i++) {
+            TCPmessageStatus message = window.recycle();
+            message.getPacketBuffer(dataLength);
+            message.setDataMessage(sequence, 1, dataLength);
+            window.add(message);
+            checksums += message.getMessage()[22];
+            sequence += dataLength;
+            // Keep the window full, acknowledging the oldest segment
+            if (window.isFull()) {
+                window.removeAcknowledged(sequence - 63 * dataLength);
+            }
+        }
+        return checksums;
+    }
+}
@@ -0,0 +1,117 @@
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Small UDP relay used by the benchmarks to put a real round trip time (and optionally loss) between TCPend processes.
+ * The sender targets the listen port, the relay forwards to the receiver and sends the replies back to the sender.
+ * Each sender gets its own socket towards the receiver, so several senders, or the flows of a striped transfer, can share one relay
+ * and the receiver still sees them on different ports.
+ * Usage: java LinkEmulator <listenPort> <receiverHost> <receiverPort> <rttMs> <lossPercent> [<replyLossPercent> [<maxDatagram>]]
+ * The loss applies in both directions unless a separate loss for the receiver's replies is given.
+ * Datagrams larger than maxDatagram bytes are dropped, like a path whose MTU loses a fragment of every larger datagram.
+ */
+public class LinkEmulator {
+
+    private DatagramSocket frontSocket; // Faces the senders
+    private ConcurrentHashMap<SocketAddress, DatagramSocket> backSockets = new ConcurrentHashMap<>(); // Faces the receiver, one per sender
+    private SocketAddress receiverAddress;
+    private long oneWayDelay; // in nanoseconds
+    private double lossRate;
+    private double replyLossRate;
+    private int maxDatagram = Integer.MAX_VALUE; // Larger datagrams are dropped
+    private Random random = new Random(640);
+
+    // Packets waiting to be delivered, one queue per direction so order is kept
+    // Each entry is the delivery time, the data, the socket to send it on and the address to send it to
+    private LinkedBlockingQueue<Object[]> toReceiver = new LinkedBlockingQueue<>();
+    private LinkedBlockingQueue<Object[]> toSender = new LinkedBlockingQueue<>();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 5 || args.length > 7) {
+            System.out.println("Usage: java LinkEmulator <listenPort> <receiverHost> <receiverPort> <rttMs> <lossPercent> [<replyLossPercent> [<maxDatagram>]]");
+            return;
+        }
+        LinkEmulator link = new LinkEmulator();
+        link.frontSocket = new DatagramSocket(Integer.parseInt(args[0]));
+        link.frontSocket.setReceiveBufferSize(4 * 1024 * 1024);
+        link.receiverAddress = new java.net.InetSocketAddress(InetAddress.getByName(args[1]), Integer.parseInt(args[2]));
+        link.oneWayDelay = (long) (Double.parseDouble(args[3]) * 1000000L / 2);
+        link.lossRate = Double.parseDouble(args[4]) / 100.0;
+        link.replyLossRate = (args.length >= 6 ? Double.parseDouble(args[5]) : Double.parseDouble(args[4])) / 100.0;
+        if (args.length == 7) {
+            link.maxDatagram = Integer.parseInt(args[6]);
+        }
+        link.start();
+    }
+
+    private void start() {
+        new Thread(() -> pump(frontSocket, null)).start();
+        new Thread(() -> deliver(toReceiver)).start();
+        new Thread(() -> deliver(toSender)).start();
+    }
+
+    // Socket facing the receiver for a sender, opened the first time the sender is seen along with the thread reading its replies
+    private DatagramSocket backSocket(SocketAddress sender) {
+        return this.backSockets.computeIfAbsent(sender, address -> {
+            try {
+                DatagramSocket socket = new DatagramSocket();
+                socket.setReceiveBufferSize(4 * 1024 * 1024);
+                new Thread(() -> pump(socket, address)).start();
+                return socket;
+            } catch (SocketException e) {
+                throw new IllegalStateException("Could not open a socket for " + address + ": " + e.getMessage());
+            }
+        });
+    }
+
+    // Read packets off a socket and queue them with their delivery time, sender is null for the socket facing the senders
+    private void pump(DatagramSocket socket, SocketAddress sender) {
+        try {
+            while (true) {
+                byte[] buffer = new byte[65536];
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                if (packet.getLength() > this.maxDatagram) {
+                    continue; // Too large for the path
+                }
+                synchronized (this.random) {
+                    if (this.random.nextDouble() < (sender == null ? this.lossRate : this.replyLossRate)) {
+                        continue; // Drop the packet
+                    }
+                }
+                byte[] data = new byte[packet.getLength()];
+                System.arraycopy(buffer, 0, data, 0, packet.getLength());
+                if (sender == null) {
+                    this.toReceiver.put(new Object[] { System.nanoTime() + this.oneWayDelay, data, backSocket(packet.getSocketAddress()), this.receiverAddress });
+                } else {
+                    this.toSender.put(new Object[] { System.nanoTime() + this.oneWayDelay, data, this.frontSocket, sender });
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("LinkEmulator stopped: " + e.getMessage());
+        }
+    }
+
+    // Release queued packets once their delay has passed
+    private void deliver(LinkedBlockingQueue<Object[]> queue) {
+        try {
+            while (true) {
+                Object[] entry = queue.take();
+                long wait = (Long) entry[0] - System.nanoTime();
+                if (wait > 0) {
+                    Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                }
+                byte[] data = (byte[]) entry[1];
+                ((DatagramSocket) entry[2]).send(new DatagramPacket(data, data.length, (SocketAddress) entry[3]));
+            }
+        } catch (Exception e) {
+            System.out.println("LinkEmulator stopped: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,123 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures how long a disk stall holds up the sender's loop, with the file read in the loop and with TCPprefetcher reading it ahead.
+ * A loop stands in for the send loop: it takes one chunk per packet interval, as the ACKs free up the window, and otherwise waits.
+ * Every so often a read stalls, as a disk does on a seek or a cold page cache, the stalls are made with a sleep in the file handler.
+ * -- inline: the loop reads the chunk itself, a stalled read is time the loop can't look at ACKs or timers.
+ * -- prefetch: the loop takes chunks the reader thread read ahead, a window or a few ahead, a stall only empties the ring a little.
+ * The time the loop spends getting its chunks, in total and the longest single time, is how long ACKs and timers would have waited.
+ * It is timed around the call rather than between passes of the loop so the scheduler's own hiccups on a busy machine don't count.
+ * Usage: java PrefetchBench [chunks] [intervalMicros] [stallEvery] [stallMillis] [window]
+ */
+public class PrefetchBench {
+
+    private static final int CHUNK_SIZE = 1000;
+    private static final long RETRY_NANOS = 250 * 1000L; // How soon TCPconnection asks again when the next chunk isn't ready
+
+    public static void main(String[] args) throws IOException {
+        int chunks = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        long interval = (args.length > 1 ? Long.parseLong(args[1]) : 50) * 1000L;
+        int stallEvery = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        long stall = (args.length > 3 ? Long.parseLong(args[3]) : 10) * 1000000L;
+        int window = args.length > 4 ? Integer.parseInt(args[4]) : 128;
+
+        File file = File.createTempFile("prefetch", ".bin");
+        file.deleteOnExit();
+        byte[] data = new byte[chunks * CHUNK_SIZE];
+        new Random(640).nextBytes(data);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+
+        System.out.println(String.format("%d chunks of %d bytes, one every %d us, a %d ms stall every %d reads",
+            chunks, CHUNK_SIZE, interval / 1000, stall / 1000000, stallEvery));
+        for (int windows : new int[] { 0, 1, 4 }) {
+            run(file, data, chunks, interval, stallEvery, stall, windows, window);
+        }
+    }
+
+    // Take every chunk of the file at the packet rate, reading inline when windows is 0
+    private static void run(File file, byte[] data, int chunks, long interval, int stallEvery, long stall, int windows, int window) throws IOException {
+        TCPfileHandling fileHandler = new StallingFile(file.getPath(), stallEvery, stall);
+        TCPprefetcher prefetcher = null;
+        if (windows > 0) {
+            prefetcher = new TCPprefetcher(fileHandler, windows * window, CHUNK_SIZE);
+            prefetcher.start();
+        }
+        ByteBuffer packet = ByteBuffer.allocate(24 + CHUNK_SIZE);
+        long start = System.nanoTime();
+        long next = start;
+        long heldUp = 0; // Time spent getting chunks
+        long longestHeldUp = 0;
+        int taken = 0;
+        while (true) {
+            long now = System.nanoTime();
+            if (now - next < 0) {
+                // Nothing to send yet, the real loop waits on its receive here
+                LockSupport.parkNanos(next - now);
+                continue;
+            }
+            int length = prefetcher != null ? prefetcher.take(packet, 24) : fileHandler.readNextChunk(packet, 24);
+            long took = System.nanoTime() - now;
+            heldUp += took;
+            longestHeldUp = Math.max(longestHeldUp, took);
+            if (length < 0) {
+                break;
+            }
+            if (length == 0) {
+                // Not read yet, the real loop goes back to its ACKs and asks again shortly
+                LockSupport.parkNanos(RETRY_NANOS);
+                continue;
+            }
+            for (int i = 0; i < length; i += 97) {
+                if (packet.get(24 + i) != data[taken * CHUNK_SIZE + i]) {
+                    throw new IllegalStateException("Chunk " + taken + " differs from the file at byte " + i);
+                }
+            }
+            taken++;
+            next += interval;
+        }
+        long elapsed = System.nanoTime() - start;
+        if (taken != chunks) {
+            throw new IllegalStateException(taken + " chunks taken of " + chunks);
+        }
+
+        String name = windows == 0 ? "inline" : "prefetch " + windows + (windows == 1 ? " window" : " windows");
+        System.out.print(String.format("%-18s %6.2f s, loop held up %7.2f ms in total, longest %6.2f ms", name, elapsed / 1e9, heldUp / 1e6, longestHeldUp / 1e6));
+        if (prefetcher != null) {
+            System.out.print(String.format(", %.1f of %d ready on average, empty %d times", prefetcher.getAverageDepth(), prefetcher.getCapacity(), prefetcher.getEmptyTakes()));
+            prefetcher.close();
+        }
+        System.out.println();
+        fileHandler.close();
+    }
+
+    /**
+     * A file whose reads stall now and then.
+     */
+    private static class StallingFile extends TCPfileHandling {
+        private int stallEvery;
+        private long stall;
+        private int reads;
+
+        StallingFile(String filePath, int stallEvery, long stall) {
+            super(filePath, CHUNK_SIZE);
+            this.stallEvery = stallEvery;
+            this.stall = stall;
+        }
+
+        @Override
+        public int readNextChunk(ByteBuffer destination, int offset) throws IOException {
+            if (++this.reads % this.stallEvery == 0) {
+                LockSupport.parkNanos(this.stall);
+            }
+            return super.readNextChunk(destination, offset);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+/**
+ * Times reading a whole file through TCPfileHandling.readNextChunk, the way the sender pulls its payloads.
+ * Usage: java ReadBench <file> <chunkSize>
+ * A 1 GB file at -m 1400: head -c 1073741824 /dev/urandom > /tmp/1g.bin && java ReadBench /tmp/1g.bin 1400
+ */
+public class ReadBench {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.out.println("Usage: java ReadBench <file> <chunkSize>");
+            return;
+        }
+        TCPfileHandling fileHandler = new TCPfileHandling(args[0], Integer.parseInt(args[1]));
+
+        long start = System.nanoTime();
+        long bytes = 0;
+        long chunks = 0;
+        byte[] chunk;
+        while ((chunk = fileHandler.readNextChunk()) != null) {
+            bytes += chunk.length;
+            chunks++;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format("%d chunks, %d bytes in %.2f s, %.1f MB/s, %.0f ns per chunk",
+            chunks, bytes, elapsed / 1000000000.0, bytes / 1048576.0 / (elapsed / 1000000000.0), (double) elapsed / chunks));
+    }
+}
@@ -0,0 +1,72 @@
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Measures the time and heap allocation for turning a received datagram into a message.
+ * -- twice: what the old receive path did, a fresh receive buffer, then the packet parsed into a message twice,
+ *    each parse copying the data out and summing the whole buffer for the checksum.
+ * -- view: a reused receive buffer parsed once, the message views the header and data in place.
+ * Usage: java ReceiveParseBench [dataLength] [packets]
+ */
+public class ReceiveParseBench {
+
+    private static final int MAX_BYTES = 1518;
+
+    public static void main(String[] args) {
+        int dataLength = args.length > 0 ? Integer.parseInt(args[0]) : 1400;
+        int packets = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+        // Build a valid data packet to "receive"
+        TCPmessageStatus sent = new TCPmessageStatus(0, 0);
+        byte[] data = new byte[dataLength];
+        Arrays.fill(data, (byte) 'x');
+        sent.setDataMessage(1, 1, data);
+        byte[] packet = Arrays.copyOf(sent.getMessage(), sent.getMessageLength());
+
+        // Warm up both paths so the numbers are for compiled code
+        runTwice(packet, packets / 10);
+        runView(packet, packets / 10);
+
+        report("twice", packet, packets, true);
+        report("view", packet, packets, false);
+    }
+
+    private static void report(String name, byte[] packet, int packets, boolean twice) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        long result = twice ? runTwice(packet, packets) : runView(packet, packets);
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        System.out.println(String.format("%-6s %8.1f ns per packet %10.1f bytes allocated per packet (%d)",
+            name, (double) elapsed / packets, (double) allocated / packets, result & 0xF));
+    }
+
+    // Old path, a new buffer per receive and two full parses that each copy the data
+    private static long runTwice(byte[] packet, int packets) {
+        long total = 0;
+        for (int i = 0; i < packets; i++) {
+            byte[] buffer = new byte[MAX_BYTES];
+            System.arraycopy(packet, 0, buffer, 0, packet.length);
+            for (int parse = 0; parse < 2; parse++) {
+                TCPmessageStatus message = new TCPmessageStatus(buffer);
+                byte[] copy = Arrays.copyOfRange(buffer, 24, 24 + message.dataLength);
+                total += copy[0] + (message.message.checksumValid ? 1 : 0);
+            }
+        }
+        return total;
+    }
+
+    // New path, one reused buffer parsed once, the data read through a view
+    private static long runView(byte[] packet, int packets) {
+        long total = 0;
+        byte[] buffer = new byte[MAX_BYTES];
+        for (int i = 0; i < packets; i++) {
+            System.arraycopy(packet, 0, buffer, 0, packet.length);
+            TCPmessageStatus message = new TCPmessageStatus(buffer, packet.length);
+            total += buffer[24] + (message.message.checksumValid ? 1 : 0);
+        }
+        return total;
+    }
+}
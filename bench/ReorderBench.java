@@ -0,0 +1,113 @@
+import java.util.ArrayList;
+
+/**
+ * Measures holding out of order segments on the receiver and draining them once the gap is filled.
+ * Each round loses the first segment of a window, the rest of the window arrives ahead of it, then the lost segment comes in.
+ * -- list: the old sorted ArrayList, a linear scan and add(position) for every segment, remove(0) to drain.
+ * -- ring: TCPreorderBuffer, a slot lookup for every segment.
+ * Usage: java ReorderBench [window] [rounds]
+ */
+public class ReorderBench {
+
+    private static final int SEGMENT_SIZE = 1000;
+
+    public static void main(String[] args) {
+        int window = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        // One round of segments, the first one held back, the others in a shuffled order
+        TCPmessageStatus[] segments = new TCPmessageStatus[window];
+        for (int i = 0; i < window; i++) {
+            segments[i] = new TCPmessageStatus(1 + i * SEGMENT_SIZE, 1);
+            segments[i].dataLength = SEGMENT_SIZE;
+        }
+        int[] order = new int[window - 1];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i + 1;
+        }
+        java.util.Random random = new java.util.Random(640);
+        for (int i = order.length - 1; i > 0; i--) {
+            int swap = random.nextInt(i + 1);
+            int temp = order[i];
+            order[i] = order[swap];
+            order[swap] = temp;
+        }
+
+        // Warm up both so the numbers are for compiled code
+        runList(segments, order, window, rounds / 10);
+        runRing(segments, order, window, rounds / 10);
+
+        long start = System.nanoTime();
+        long result = runList(segments, order, window, rounds);
+        report("list", System.nanoTime() - start, (long) rounds * window, result);
+
+        start = System.nanoTime();
+        result = runRing(segments, order, window, rounds);
+        report("ring", System.nanoTime() - start, (long) rounds * window, result);
+    }
+
+    private static long runList(TCPmessageStatus[] segments, int[] order, int window, int rounds) {
+        long delivered = 0;
+        ArrayList<TCPmessageStatus> list = new ArrayList<TCPmessageStatus>();
+        int nextExpected = 1;
+        for (int round = 0; round < rounds; round++) {
+            number(segments, nextExpected);
+            for (int i : order) {
+                insert(list, segments[i]);
+            }
+            insert(list, segments[0]);
+            while (list.size() > 0 && list.get(0).byteSequenceNumber == nextExpected) {
+                nextExpected += list.remove(0).dataLength;
+                delivered++;
+            }
+        }
+        return delivered;
+    }
+
+    // The old insertion, scan for the position and shift the rest of the list
+    private static void insert(ArrayList<TCPmessageStatus> list, TCPmessageStatus message) {
+        int position = 0;
+        while (position < list.size()) {
+            if (message.byteSequenceNumber == list.get(position).byteSequenceNumber) {
+                return;
+            } else if (message.byteSequenceNumber < list.get(position).byteSequenceNumber) {
+                list.add(position, message);
+                return;
+            }
+            position++;
+        }
+        list.add(message);
+    }
+
+    private static long runRing(TCPmessageStatus[] segments, int[] order, int window, int rounds) {
+        long delivered = 0;
+        TCPreorderBuffer buffer = new TCPreorderBuffer(window, SEGMENT_SIZE);
+        int nextExpected = 1;
+        for (int round = 0; round < rounds; round++) {
+            number(segments, nextExpected);
+            for (int i : order) {
+                buffer.add(segments[i], nextExpected);
+            }
+            // The held back segment is in order, it is delivered without going through the buffer
+            nextExpected += SEGMENT_SIZE;
+            delivered++;
+            TCPmessageStatus message;
+            while ((message = buffer.poll(nextExpected)) != null) {
+                nextExpected += message.dataLength;
+                delivered++;
+            }
+        }
+        return delivered;
+    }
+
+    // Give the segments of a round their sequence numbers, each round carries on from the last
+    private static void number(TCPmessageStatus[] segments, int firstByte) {
+        for (int i = 0; i < segments.length; i++) {
+            segments[i].byteSequenceNumber = firstByte + i * SEGMENT_SIZE;
+        }
+    }
+
+    private static void report(String name, long elapsed, long segments, long delivered) {
+        System.out.println(String.format("%-5s %8.1f ns per segment (%d delivered)", name, (double) elapsed / segments, delivered));
+    }
+}
@@ -0,0 +1,102 @@
+import java.util.Random;
+
+/**
+ * Runs the send window and the reorder buffer across the point where the 32 bit sequence number wraps.
+ * A real transfer would have to move 4 GB to get there, this starts the sequence numbers just short of 2^32 instead.
+ * -- sender: segments are added, found by sequence number and retired by cumulative ACKs, partly through the wrap.
+ * -- receiver: each window arrives shuffled, the segments past the next expected byte are held and drained in order.
+ * Usage: java SequenceWrapCheck [window] [segmentSize] [segments]
+ */
+public class SequenceWrapCheck {
+
+    public static void main(String[] args) {
+        int window = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int segmentSize = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int segments = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+
+        // Start far enough before the wrap that about half the segments are on each side
+        int firstByte = (int) (0x100000000L - (long) segments / 2 * segmentSize + 1);
+
+        checkSender(window, segmentSize, segments, firstByte);
+        checkReceiver(window, segmentSize, segments, firstByte);
+        System.out.println("Sequence numbers " + TCPsequence.unsigned(firstByte) + " to "
+            + TCPsequence.unsigned(firstByte + segments * segmentSize) + " passed through the wrap");
+    }
+
+    private static void checkSender(int window, int segmentSize, int segments, int firstByte) {
+        TCPsendWindow sendWindow = new TCPsendWindow(window, segmentSize);
+        Random random = new Random(640);
+        int nextByte = firstByte;
+        int acked = firstByte;
+        int sent = 0;
+        while (sent < segments || !sendWindow.isEmpty()) {
+            // Fill the window
+            while (sent < segments && !sendWindow.isFull()) {
+                TCPmessageStatus message = sendWindow.recycle();
+                message.byteSequenceNumber = nextByte;
+                message.dataLength = segmentSize;
+                sendWindow.add(message);
+                nextByte += segmentSize;
+                sent++;
+            }
+            // Every segment in flight must be found by its sequence number
+            for (int position = 0; position < sendWindow.span(); position++) {
+                TCPmessageStatus message = sendWindow.get(position);
+                if (sendWindow.findBySequence(message.byteSequenceNumber) != message) {
+                    throw new IllegalStateException("Segment " + TCPsequence.unsigned(message.byteSequenceNumber) + " not found");
+                }
+            }
+            // A cumulative ACK for part of the window
+            int retire = 1 + random.nextInt(sendWindow.size());
+            int ackNumber = acked + retire * segmentSize;
+            if (sendWindow.removeAcknowledged(ackNumber) != retire) {
+                throw new IllegalStateException("ACK " + TCPsequence.unsigned(ackNumber) + " did not retire " + retire + " segments");
+            }
+            if (!TCPsequence.lessThan(acked, ackNumber)) {
+                throw new IllegalStateException("ACK " + TCPsequence.unsigned(ackNumber) + " does not come after " + TCPsequence.unsigned(acked));
+            }
+            acked = ackNumber;
+        }
+    }
+
+    private static void checkReceiver(int window, int segmentSize, int segments, int firstByte) {
+        // The buffer starts lined up with byte 1 and lines itself up with the first byte on the first call
+        TCPreorderBuffer buffer = new TCPreorderBuffer(window, segmentSize);
+        Random random = new Random(640);
+        int nextExpected = firstByte;
+        int[] order = new int[window];
+        int delivered = 0;
+
+        for (int round = 0; delivered < segments; round++) {
+            int count = Math.min(window, segments - delivered);
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            for (int i = count - 1; i > 0; i--) {
+                int swap = random.nextInt(i + 1);
+                int temp = order[i];
+                order[i] = order[swap];
+                order[swap] = temp;
+            }
+            int roundStart = nextExpected;
+            for (int i = 0; i < count; i++) {
+                TCPmessageStatus message = new TCPmessageStatus(roundStart + order[i] * segmentSize, 1);
+                message.dataLength = segmentSize;
+                if (message.byteSequenceNumber == nextExpected) {
+                    nextExpected += segmentSize;
+                    delivered++;
+                } else if (!buffer.add(message, nextExpected)) {
+                    throw new IllegalStateException("Segment " + TCPsequence.unsigned(message.byteSequenceNumber) + " in the window was refused");
+                }
+                TCPmessageStatus held;
+                while ((held = buffer.poll(nextExpected)) != null) {
+                    nextExpected += held.dataLength;
+                    delivered++;
+                }
+            }
+            if (nextExpected != roundStart + count * segmentSize || !buffer.isEmpty()) {
+                throw new IllegalStateException("Round " + round + " did not drain, next expected byte " + TCPsequence.unsigned(nextExpected));
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+import java.util.Random;
+
+/**
+ * Drives the retransmission timer with synthetic round trip time traces and checks it against RFC 6298.
+ * The traces run on a made up clock, so a run takes no time and gives the same result every time.
+ * -- initial: 1 second before any sample, the first sample sets SRTT = R and RTTVAR = R / 2.
+ * -- steady: a constant round trip time converges on it, the timeout settles on the 200 ms minimum.
+ * -- spike: one slow sample pushes the timeout past it, later samples bring it back down.
+ * -- clamp: a huge sample is held to the 60 second maximum, a sample that comes back before it was sent is ignored.
+ * -- backoff: every timeout doubles the timeout up to the maximum, the next sample sets it from the estimate again.
+ * -- recovery: after backing off, the sample from the ACK of a resent segment brings the timeout straight back down.
+ * Usage: java TimeoutTraceCheck [seed]
+ */
+public class TimeoutTraceCheck {
+
+    private static final long MS = 1000000L;
+
+    public static void main(String[] args) {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 6298;
+
+        checkInitial();
+        checkSteady(seed);
+        checkSpike();
+        checkClamp();
+        checkBackOff();
+        checkRecovery();
+        System.out.println("Retransmission timer passed all traces");
+    }
+
+    private static void checkInitial() {
+        TCPtimeout timeout = new TCPtimeout();
+        expect("initial timeout", timeout.getTimeOut(), TCPtimeout.INITIAL_TIMEOUT);
+        sample(timeout, 100 * MS);
+        expect("first SRTT", timeout.getSmoothedRtt(), 100 * MS);
+        expect("first RTTVAR", timeout.getRttVariation(), 50 * MS);
+        expect("first timeout", timeout.getTimeOut(), 300 * MS);
+        // Second sample, RTTVAR is updated from the old SRTT: 3/4 * 50 + 1/4 * |100 - 60| = 47.5, SRTT = 7/8 * 100 + 1/8 * 60 = 95
+        sample(timeout, 60 * MS);
+        expect("second RTTVAR", timeout.getRttVariation(), 47500000L);
+        expect("second SRTT", timeout.getSmoothedRtt(), 95 * MS);
+        expect("second timeout", timeout.getTimeOut(), 285 * MS);
+    }
+
+    private static void checkSteady(long seed) {
+        Random random = new Random(seed);
+        TCPtimeout timeout = new TCPtimeout();
+        // 50 ms with up to 1 ms of jitter
+        for (int i = 0; i < 500; i++) {
+            sample(timeout, 50 * MS + random.nextInt((int) MS));
+        }
+        long srtt = timeout.getSmoothedRtt();
+        if (srtt < 50 * MS || srtt > 51 * MS) {
+            throw new IllegalStateException("steady SRTT " + srtt + " ns not within 50 to 51 ms");
+        }
+        if (timeout.getRttVariation() > MS) {
+            throw new IllegalStateException("steady RTTVAR " + timeout.getRttVariation() + " ns above the jitter");
+        }
+        expect("steady timeout", timeout.getTimeOut(), TCPtimeout.MIN_TIMEOUT);
+
+        // The same trace at 500 ms is above the minimum, SRTT plus at least the clock granularity, less what integer division rounds off
+        for (int i = 0; i < 500; i++) {
+            sample(timeout, 500 * MS);
+        }
+        if (timeout.getTimeOut() < 500 * MS || timeout.getTimeOut() > 510 * MS) {
+            throw new IllegalStateException("steady 500 ms timeout " + timeout.getTimeOut() + " ns");
+        }
+    }
+
+    private static void checkSpike() {
+        TCPtimeout timeout = new TCPtimeout();
+        for (int i = 0; i < 200; i++) {
+            sample(timeout, 100 * MS);
+        }
+        sample(timeout, 1000 * MS);
+        // RTTVAR = 1/4 * 900 = 225, SRTT = 7/8 * 100 + 1/8 * 1000 = 212.5, timeout = 212.5 + 900
+        long expected = timeout.getSmoothedRtt() + 4 * timeout.getRttVariation();
+        expect("spike timeout", timeout.getTimeOut(), expected);
+        if (timeout.getTimeOut() <= 1000 * MS) {
+            throw new IllegalStateException("spike timeout " + timeout.getTimeOut() + " ns not past the spike");
+        }
+        for (int i = 0; i < 50; i++) {
+            sample(timeout, 100 * MS);
+        }
+        if (timeout.getTimeOut() > 300 * MS) {
+            throw new IllegalStateException("timeout " + timeout.getTimeOut() + " ns did not recover from the spike");
+        }
+    }
+
+    private static void checkClamp() {
+        TCPtimeout timeout = new TCPtimeout();
+        sample(timeout, 50000 * MS);
+        expect("clamped timeout", timeout.getTimeOut(), TCPtimeout.MAX_TIMEOUT);
+
+        timeout = new TCPtimeout();
+        sample(timeout, 100 * MS);
+        long before = timeout.getTimeOut();
+        // An echoed time after the ACK arrived is not a sample
+        timeout.updateTimeOut(1000 * MS, 1500 * MS);
+        timeout.updateTimeOut(1000 * MS, 1000 * MS);
+        expect("timeout after negative sample", timeout.getTimeOut(), before);
+        expect("SRTT after negative sample", timeout.getSmoothedRtt(), 100 * MS);
+    }
+
+    private static void checkBackOff() {
+        TCPtimeout timeout = new TCPtimeout();
+        sample(timeout, 10 * MS);
+        expect("timeout before backoff", timeout.getTimeOut(), TCPtimeout.MIN_TIMEOUT);
+        long expected = TCPtimeout.MIN_TIMEOUT;
+        for (int i = 1; i <= 12; i++) {
+            timeout.backOff();
+            expected = Math.min(expected * 2, TCPtimeout.MAX_TIMEOUT);
+            expect("timeout after " + i + " backoffs", timeout.getTimeOut(), expected);
+            expect("backoffs", timeout.getBackOffs(), i);
+        }
+        expect("backed off timeout", timeout.getTimeOut(), TCPtimeout.MAX_TIMEOUT);
+
+        // A segment sent just now times out at the backed off deadline, not before
+        long sent = 5000 * MS;
+        if (timeout.isTimedOut(sent + TCPtimeout.MAX_TIMEOUT, sent) || !timeout.isTimedOut(sent + TCPtimeout.MAX_TIMEOUT + 1, sent)) {
+            throw new IllegalStateException("backed off deadline is not " + TCPtimeout.MAX_TIMEOUT + " ns after the send");
+        }
+        // A packet stamped after the current time has not timed out
+        if (timeout.isTimedOut(sent, sent + MS)) {
+            throw new IllegalStateException("packet sent in the future timed out");
+        }
+
+        // The next sample collapses the backoff
+        sample(timeout, 10 * MS);
+        expect("backoffs after a sample", timeout.getBackOffs(), 0);
+        expect("timeout after a sample", timeout.getTimeOut(), TCPtimeout.MIN_TIMEOUT);
+    }
+
+    private static void checkRecovery() {
+        TCPtimeout timeout = new TCPtimeout();
+        for (int i = 0; i < 50; i++) {
+            sample(timeout, 20 * MS);
+        }
+        // A lossy stretch times out again and again, the holes are resent and their ACKs echo the resent copies
+        for (int i = 0; i < 8; i++) {
+            timeout.backOff();
+        }
+        expect("timeout backed off 8 times", timeout.getTimeOut(), 256 * TCPtimeout.MIN_TIMEOUT);
+        sample(timeout, 20 * MS);
+        expect("backoffs after the resent segment's ACK", timeout.getBackOffs(), 0);
+        expect("timeout after the resent segment's ACK", timeout.getTimeOut(), TCPtimeout.MIN_TIMEOUT);
+    }
+
+    // Feed one round trip time to the timer, sent at an arbitrary point on the made up clock
+    private static void sample(TCPtimeout timeout, long rtt) {
+        long sent = 1000 * MS;
+        timeout.updateTimeOut(sent + rtt, sent);
+    }
+
+    private static void expect(String what, long actual, long expected) {
+        if (actual != expected) {
+            throw new IllegalStateException(what + " is " + actual + ", expected " + expected);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+import java.util.Random;
+
+/**
+ * Measures the sender's retransmission timer bookkeeping per ACK as the window grows.
+ * Each ACK retires the oldest segment and sends a new one, 1% of the segments are lost and left to time out, on a made up clock.
+ * -- scan: the old loop, isTimedOut on every segment in the window and the earliest deadline of all of them.
+ * -- wheel: TCPtimerWheel, the new segment's timer started, the retired one's stopped, then expire and nextDeadline.
+ * Every timer the wheel fires is checked to be due and no more than a tick late.
+ * Usage: java TimerWheelBench [acks] [windows...]
+ */
+public class TimerWheelBench {
+
+    private static final long RTT = 10 * 1000000L;
+    private static final long TICK = 1000000L;
+
+    public static void main(String[] args) {
+        int acks = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int[] windows = { 64, 512, 4096, 16384 };
+        if (args.length > 1) {
+            windows = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                windows[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        for (int window : windows) {
+            // Warm up both so the numbers are for compiled code
+            runScan(window, acks / 10);
+            runWheel(window, acks / 10);
+
+            long start = System.nanoTime();
+            long fired = runScan(window, acks);
+            report("scan", window, System.nanoTime() - start, acks, fired);
+
+            start = System.nanoTime();
+            fired = runWheel(window, acks);
+            report("wheel", window, System.nanoTime() - start, acks, fired);
+        }
+    }
+
+    private static long runScan(int window, int acks) {
+        TCPtimeout timeout = timeout();
+        TCPmessageStatus[] segments = fill(window);
+        Random random = new Random(640);
+        boolean[] lost = new boolean[window];
+        long now = System.nanoTime();
+        long fired = 0;
+        long deadline = 0;
+        for (int i = 0; i < window; i++) {
+            segments[i].timestamp = now;
+        }
+        for (int ack = 0; ack < acks; ack++) {
+            now += RTT / window;
+            // The oldest segment is retired and its slot sent again, unless it was lost and is waiting for its timer
+            TCPmessageStatus oldest = segments[ack % window];
+            if (!lost(lost, oldest, random)) {
+                oldest.timestamp = now;
+            }
+            deadline = 0;
+            for (TCPmessageStatus message : segments) {
+                if (timeout.isTimedOut(now, message.timestamp)) {
+                    lost[index(message)] = false;
+                    message.timestamp = now;
+                    fired++;
+                }
+                if (deadline == 0 || timeout.getDeadline(message.timestamp) - deadline < 0) {
+                    deadline = timeout.getDeadline(message.timestamp);
+                }
+            }
+        }
+        return fired + (deadline & 1);
+    }
+
+    private static long runWheel(int window, int acks) {
+        TCPtimeout timeout = timeout();
+        TCPmessageStatus[] segments = fill(window);
+        TCPtimerWheel timers = new TCPtimerWheel(TICK, 1024);
+        Random random = new Random(640);
+        boolean[] lost = new boolean[window];
+        long now = System.nanoTime();
+        long fired = 0;
+        long deadline = 0;
+        for (int i = 0; i < window; i++) {
+            segments[i].timestamp = now;
+            timers.schedule(segments[i], timeout.getDeadline(now));
+        }
+        for (int ack = 0; ack < acks; ack++) {
+            now += RTT / window;
+            TCPmessageStatus oldest = segments[ack % window];
+            if (!lost(lost, oldest, random)) {
+                timers.cancel(oldest);
+                oldest.timestamp = now;
+                timers.schedule(oldest, timeout.getDeadline(now));
+            }
+            TCPmessageStatus message;
+            while ((message = timers.expire(now)) != null) {
+                long due = timeout.getDeadline(message.timestamp);
+                if (due - now > 0 || now - due > 2 * TICK + RTT / window) {
+                    throw new IllegalStateException("Timer due at " + due + " fired at " + now);
+                }
+                lost[index(message)] = false;
+                message.timestamp = now;
+                timers.schedule(message, timeout.getDeadline(now));
+                fired++;
+            }
+            deadline = timers.nextDeadline();
+        }
+        if (timers.size() != window) {
+            throw new IllegalStateException(timers.size() + " timers running for a window of " + window);
+        }
+        return fired + (deadline & 1);
+    }
+
+    // Whether the segment is lost, 1% newly are, a lost one stays lost until its timer fires
+    private static boolean lost(boolean[] lost, TCPmessageStatus message, Random random) {
+        int index = index(message);
+        if (!lost[index] && random.nextInt(100) == 0) {
+            lost[index] = true;
+        }
+        return lost[index];
+    }
+
+    private static int index(TCPmessageStatus message) {
+        return (message.byteSequenceNumber - 1) / 1000;
+    }
+
+    // A timeout settled on a 10 millisecond round trip time
+    private static TCPtimeout timeout() {
+        TCPtimeout timeout = new TCPtimeout();
+        for (int i = 0; i < 100; i++) {
+            timeout.updateTimeOut(RTT, 0);
+        }
+        return timeout;
+    }
+
+    private static TCPmessageStatus[] fill(int window) {
+        TCPmessageStatus[] segments = new TCPmessageStatus[window];
+        for (int i = 0; i < window; i++) {
+            segments[i] = new TCPmessageStatus(1 + i * 1000, 1);
+            segments[i].dataLength = 1000;
+        }
+        return segments;
+    }
+
+    private static void report(String name, int window, long elapsed, int acks, long fired) {
+        System.out.println(String.format("%-6s window %6d %10.1f ns per ACK (%d timeouts)", name, window, (double) elapsed / acks, fired));
+    }
+}
@@ -0,0 +1,118 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures how long a disk stall holds up the receiver's loop, with the file written in the loop and with TCPdiskWriter writing it behind.
+ * A loop stands in for the receive loop: one in order segment arrives per packet interval and is handed to the data tracker, then ACKed.
+ * Every so often a write stalls, as a disk does when its cache fills or it syncs, the stalls are made with a sleep in the file handler.
+ * -- inline: the loop writes the segment itself, a stalled write is time the loop can't read packets or send ACKs.
+ * -- write queue: the loop queues the segment for the writer thread, a stall only fills the queue a little.
+ * The time the loop spends handing over its segments, in total and the longest single time, is how long the ACKs would have waited.
+ * It is timed around the call rather than between passes of the loop so the scheduler's own hiccups on a busy machine don't count.
+ * The file written is compared with the data sent at the end of each run.
+ * Usage: java WriteQueueBench [segments] [intervalMicros] [stallEvery] [stallMillis] [window]
+ */
+public class WriteQueueBench {
+
+    private static final int SEGMENT_SIZE = 1000;
+
+    public static void main(String[] args) throws IOException {
+        int segments = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        long interval = (args.length > 1 ? Long.parseLong(args[1]) : 50) * 1000L;
+        int stallEvery = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        long stall = (args.length > 3 ? Long.parseLong(args[3]) : 10) * 1000000L;
+        int window = args.length > 4 ? Integer.parseInt(args[4]) : 128;
+
+        byte[] data = new byte[segments * SEGMENT_SIZE];
+        new Random(640).nextBytes(data);
+
+        System.out.println(String.format("%d segments of %d bytes, one every %d us, a %d ms stall every %d writes",
+            segments, SEGMENT_SIZE, interval / 1000, stall / 1000000, stallEvery));
+        for (int windows : new int[] { 0, 1, 4 }) {
+            run(data, segments, interval, stallEvery, stall, windows, window);
+        }
+    }
+
+    // Hand every segment to the data tracker at the packet rate, writing inline when windows is 0
+    private static void run(byte[] data, int segments, long interval, int stallEvery, long stall, int windows, int window) throws IOException {
+        File file = File.createTempFile("writequeue", ".bin");
+        file.deleteOnExit();
+        TCPfileHandling fileHandler = new StallingFile(file.getPath(), stallEvery, stall);
+        TCPdataTracker dataTracker = new TCPdataTracker(false, SEGMENT_SIZE, window, fileHandler);
+        TCPdiskWriter diskWriter = null;
+        if (windows > 0) {
+            diskWriter = new TCPdiskWriter(fileHandler, windows * window, SEGMENT_SIZE);
+            dataTracker.setDiskWriter(diskWriter);
+            diskWriter.start();
+        }
+        byte[] packet = new byte[24 + SEGMENT_SIZE];
+        long start = System.nanoTime();
+        long next = start;
+        long heldUp = 0; // Time spent handing segments over
+        long longestHeldUp = 0;
+        int delivered = 0;
+        while (delivered < segments) {
+            long now = System.nanoTime();
+            if (now - next < 0) {
+                // Nothing has arrived yet, the real loop waits on its receive here
+                LockSupport.parkNanos(next - now);
+                continue;
+            }
+            System.arraycopy(data, delivered * SEGMENT_SIZE, packet, 24, SEGMENT_SIZE);
+            if (dataTracker.receiverAddData(dataTracker.getNextExpectedByte(), SEGMENT_SIZE, packet) == false) {
+                throw new IllegalStateException("Segment " + delivered + " could not be written");
+            }
+            long took = System.nanoTime() - now;
+            heldUp += took;
+            longestHeldUp = Math.max(longestHeldUp, took);
+            delivered++;
+            next += interval;
+        }
+        // The FIN is answered once the queue is written out, that wait counts once at the end
+        long drainAt = System.nanoTime();
+        if (diskWriter != null) {
+            diskWriter.close();
+        }
+        long drain = System.nanoTime() - drainAt;
+        fileHandler.close();
+        long elapsed = System.nanoTime() - start;
+        if (Arrays.equals(Files.readAllBytes(file.toPath()), data) == false) {
+            throw new IllegalStateException("The file written differs from the data sent");
+        }
+
+        String name = windows == 0 ? "inline" : "write queue " + windows + (windows == 1 ? " window" : " windows");
+        System.out.print(String.format("%-21s %6.2f s, loop held up %7.2f ms in total, longest %6.2f ms, drain %5.2f ms", name, elapsed / 1e9, heldUp / 1e6, longestHeldUp / 1e6, drain / 1e6));
+        if (diskWriter != null) {
+            System.out.print(String.format(", %.1f of %d waiting on average, full %d times", diskWriter.getAverageDepth(), diskWriter.getCapacity(), diskWriter.getFullWaits()));
+        }
+        System.out.println();
+        file.delete();
+    }
+
+    /**
+     * A file whose writes stall now and then.
+     */
+    private static class StallingFile extends TCPfileHandling {
+        private int stallEvery;
+        private long stall;
+        private int writes;
+
+        StallingFile(String filePath, int stallEvery, long stall) {
+            super(filePath);
+            this.stallEvery = stallEvery;
+            this.stall = stall;
+        }
+
+        @Override
+        public void writeByteArrayToFile(byte[] data, int dataLength) throws IOException {
+            if (++this.writes % this.stallEvery == 0) {
+                LockSupport.parkNanos(this.stall);
+            }
+            super.writeByteArrayToFile(data, dataLength);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+#!/bin/sh
+# End to end transfer benchmark over loopback.
+# Every run goes through bench/LinkEmulator so a round trip time and loss can be emulated.
+#
+# Environment:
+#   SIZE_MB  size of the generated input file (default 16)
+#   MTU      value passed as -m (default 1000)
+#   WINDOWS  values passed as -c, one run each (default "64 512")
+#   RTT_MS   emulated round trip time in milliseconds (default 10)
+#   LOSS     emulated loss percentage in each direction (default 0)
+#   ACK_LOSS emulated loss percentage for the receiver's replies only (default LOSS)
+#   RECEIVER_ARGS extra arguments for the receiver, e.g. "-ack 1" (default none)
+#   SENDER_ARGS   extra arguments for the sender, e.g. "-cc cubic" (default none)
+#
+# The drops column is the growth of the kernel's UDP RcvbufErrors counter during the run,
+# datagrams dropped because a socket's receive buffer was full (Linux only, - elsewhere).
+
+SIZE_MB=${SIZE_MB:-16}
+MTU=${MTU:-1000}
+WINDOWS=${WINDOWS:-"64 512"}
+RTT_MS=${RTT_MS:-10}
+LOSS=${LOSS:-0}
+ACK_LOSS=${ACK_LOSS:-$LOSS}
+RECEIVER_ARGS=${RECEIVER_ARGS:-}
+SENDER_ARGS=${SENDER_ARGS:-}
+
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+WORK=${WORK:-/tmp/tcpend_bench}
+mkdir -p "$WORK/classes"
+javac -d "$WORK/classes" "$ROOT"/src/*.java "$ROOT"/bench/*.java || exit 1
+
+# Datagrams dropped on full socket receive buffers so far
+rcvbuf_errors() {
+    awk '/^Udp:/ { if (!n++) { for (i = 1; i <= NF; i++) if ($i == "RcvbufErrors") f = i } else if (f) print $f }' /proc/net/snmp 2>/dev/null
+}
+
+INPUT="$WORK/input_${SIZE_MB}MB.bin"
+if [ ! -f "$INPUT" ]; then
+    head -c $((SIZE_MB * 1024 * 1024)) /dev/urandom > "$INPUT"
+fi
+
+printf "%-8s %-8s %-10s %-12s %-16s %-16s %-8s\n" "window" "mtu" "seconds" "Mbit/s" "retransmissions" "acks per KB" "drops"
+for C in $WINDOWS; do
+    OUTPUT="$WORK/output.bin"
+    rm -f "$OUTPUT"
+    java -cp "$WORK/classes" LinkEmulator 27001 127.0.0.1 27002 "$RTT_MS" "$LOSS" "$ACK_LOSS" > "$WORK/link.log" 2>&1 &
+    LINK=$!
+    java -cp "$WORK/classes" TCPend -p 27002 -m "$MTU" -c "$C" -f "$OUTPUT" $RECEIVER_ARGS > "$WORK/receiver.log" 2>&1 &
+    RECEIVER=$!
+    sleep 1
+    DROPS_BEFORE=$(rcvbuf_errors)
+    START=$(date +%s.%N)
+    java -cp "$WORK/classes" TCPend -p 27003 -s 127.0.0.1 -a 27001 -f "$INPUT" -m "$MTU" -c "$C" $SENDER_ARGS > "$WORK/sender.log" 2>&1
+    END=$(date +%s.%N)
+    DROPS_AFTER=$(rcvbuf_errors)
+    wait $RECEIVER
+    kill $LINK 2>/dev/null
+    wait $LINK 2>/dev/null
+    if ! cmp -s "$INPUT" "$OUTPUT"; then
+        echo "window $C: output file does not match input"
+        continue
+    fi
+    RETRANSMISSIONS=$(grep "^Retransmissions:" "$WORK/sender.log" | awk '{print $2}')
+    ACKS_PER_KB=$(grep "^Packets sent per KB received:" "$WORK/receiver.log" | awk '{print $NF}')
+    awk -v c="$C" -v m="$MTU" -v s="$START" -v e="$END" -v mb="$SIZE_MB" -v r="$RETRANSMISSIONS" -v a="$ACKS_PER_KB" \
+        -v d0="$DROPS_BEFORE" -v d1="$DROPS_AFTER" \
+        'BEGIN { t = e - s; d = (d0 == "" || d1 == "") ? "-" : d1 - d0;
+                 printf "%-8s %-8s %-10.2f %-12.1f %-16s %-16s %-8s\n", c, m, t, mb * 8 * 1.048576 / t, r, a, d }'
+done
@@ -0,0 +1,56 @@
+#!/bin/sh
+# Large segments over paths that carry datagrams up to a given size, the sender started with -pmtu 1.
+# Every run goes through bench/LinkEmulator, which drops datagrams larger than the path carries.
+#
+# Environment:
+#   SIZE_MB  size of the generated input file (default 8)
+#   MTU      value passed as -m at both ends, the segment size the handshake settles on (default 65000)
+#   WINDOW   value passed as -c (default 32)
+#   PATHS    largest datagram each emulated path carries, one run each (default "1500 9000 65507")
+#   RTT_MS   emulated round trip time in milliseconds (default 10)
+#   LOSS     emulated loss percentage in each direction (default 0)
+#
+# Without the probe a segment larger than the path carries never arrives, with it the sender settles on the largest that does.
+
+SIZE_MB=${SIZE_MB:-8}
+MTU=${MTU:-65000}
+WINDOW=${WINDOW:-32}
+PATHS=${PATHS:-"1500 9000 65507"}
+RTT_MS=${RTT_MS:-10}
+LOSS=${LOSS:-0}
+
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+WORK=${WORK:-/tmp/tcpend_bench}
+mkdir -p "$WORK/classes"
+javac -d "$WORK/classes" "$ROOT"/src/*.java "$ROOT"/bench/*.java || exit 1
+
+INPUT="$WORK/input_${SIZE_MB}MB.bin"
+if [ ! -f "$INPUT" ]; then
+    head -c $((SIZE_MB * 1024 * 1024)) /dev/urandom > "$INPUT"
+fi
+
+printf "%-8s %-10s %-10s %-10s %-12s %-16s\n" "path" "segment" "probe ms" "seconds" "Mbit/s" "retransmissions"
+for P in $PATHS; do
+    OUTPUT="$WORK/pmtu.bin"
+    rm -f "$OUTPUT"
+    java -cp "$WORK/classes" LinkEmulator 27001 127.0.0.1 27002 "$RTT_MS" "$LOSS" "$LOSS" "$P" > "$WORK/link.log" 2>&1 &
+    LINK=$!
+    java -cp "$WORK/classes" TCPend -p 27002 -m "$MTU" -c "$WINDOW" -f "$OUTPUT" > "$WORK/receiver.log" 2>&1 &
+    RECEIVER=$!
+    sleep 1
+    START=$(date +%s.%N)
+    java -cp "$WORK/classes" TCPend -p 27101 -s 127.0.0.1 -a 27001 -f "$INPUT" -m "$MTU" -c "$WINDOW" -pmtu 1 > "$WORK/sender.log" 2>&1
+    END=$(date +%s.%N)
+    wait $RECEIVER
+    kill $LINK 2>/dev/null
+    wait $LINK 2>/dev/null
+    if ! cmp -s "$INPUT" "$OUTPUT"; then
+        echo "path $P: output file does not match input"
+        continue
+    fi
+    SEGMENT=$(awk '/^Segment size:/ { print $3; exit }' "$WORK/sender.log")
+    PROBE=$(awk '/^Segment size:/ { for (i = 1; i <= NF; i++) if ($i == "ms") print $(i - 1); exit }' "$WORK/sender.log")
+    RETRANSMISSIONS=$(awk '/^Retransmissions:/ { n += $2 } END { print n + 0 }' "$WORK/sender.log")
+    awk -v p="$P" -v g="$SEGMENT" -v q="$PROBE" -v s="$START" -v e="$END" -v mb="$SIZE_MB" -v r="$RETRANSMISSIONS" \
+        'BEGIN { t = e - s; printf "%-8s %-10s %-10s %-10.2f %-12.1f %-16s\n", p, g, q, t, mb * 8 * 1.048576 / t, r }'
+done
@@ -0,0 +1,55 @@
+#!/bin/sh
+# Many senders uploading to one receiver at once, the receiver started with -server.
+# The senders go straight to the receiver over loopback, every one sends the same generated file.
+#
+# Environment:
+#   SIZE_MB  size of the generated input file (default 4)
+#   MTU      value passed as -m (default 1000)
+#   WINDOW   value passed as -c (default 64)
+#   SENDERS  numbers of concurrent senders, one run each (default "1 4 16")
+#   WORKERS  value passed as -server, connections the receiver serves at once (default 8)
+#
+# Each sender is its own JVM, on a small machine the senders take more of the CPU than the receiver.
+
+SIZE_MB=${SIZE_MB:-4}
+MTU=${MTU:-1000}
+WINDOW=${WINDOW:-64}
+SENDERS=${SENDERS:-"1 4 16"}
+WORKERS=${WORKERS:-8}
+
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+WORK=${WORK:-/tmp/tcpend_bench}
+mkdir -p "$WORK/classes"
+javac -d "$WORK/classes" "$ROOT"/src/*.java "$ROOT"/bench/*.java || exit 1
+
+INPUT="$WORK/input_${SIZE_MB}MB.bin"
+if [ ! -f "$INPUT" ]; then
+    head -c $((SIZE_MB * 1024 * 1024)) /dev/urandom > "$INPUT"
+fi
+
+printf "%-8s %-8s %-10s %-14s %-10s\n" "senders" "workers" "seconds" "total Mbit/s" "complete"
+for N in $SENDERS; do
+    rm -rf "$WORK/server"
+    mkdir -p "$WORK/server"
+    java -cp "$WORK/classes" TCPend -p 27002 -m "$MTU" -c "$WINDOW" -f "$WORK/server/output.bin" -server "$WORKERS" > "$WORK/server.log" 2>&1 &
+    SERVER=$!
+    sleep 1
+    START=$(date +%s.%N)
+    PIDS=""
+    for i in $(seq 1 "$N"); do
+        java -Xmx64m -cp "$WORK/classes" TCPend -p $((27100 + i)) -s 127.0.0.1 -a 27002 -f "$INPUT" -m "$MTU" -c "$WINDOW" > "$WORK/sender_$i.log" 2>&1 &
+        PIDS="$PIDS $!"
+    done
+    for P in $PIDS; do
+        wait "$P"
+    done
+    END=$(date +%s.%N)
+    kill $SERVER 2>/dev/null
+    wait $SERVER 2>/dev/null
+    COMPLETE=0
+    for F in "$WORK"/server/output_*.bin; do
+        cmp -s "$INPUT" "$F" && COMPLETE=$((COMPLETE + 1))
+    done
+    awk -v n="$N" -v w="$WORKERS" -v s="$START" -v e="$END" -v mb="$SIZE_MB" -v c="$COMPLETE" \
+        'BEGIN { t = e - s; printf "%-8s %-8s %-10.2f %-14.1f %-10s\n", n, w, t, n * mb * 8 * 1.048576 / t, c "/" n }'
+done
@@ -0,0 +1,54 @@
+#!/bin/sh
+# A file split into byte ranges and sent over several connections at once, both ends started with -flows.
+# Every run goes through bench/LinkEmulator, which gives each flow its own port towards the receiver.
+#
+# Environment:
+#   SIZE_MB  size of the generated input file (default 8)
+#   MTU      value passed as -m (default 1000)
+#   WINDOW   value passed as -c, the window of each flow (default 16)
+#   FLOWS    values passed as -flows, one run each (default "1 2 4 8")
+#   RTT_MS   emulated round trip time in milliseconds (default 20)
+#   LOSS     emulated loss percentage in each direction (default 0)
+#
+# A single flow moves at most a window per round trip, the flows together move a window each.
+
+SIZE_MB=${SIZE_MB:-8}
+MTU=${MTU:-1000}
+WINDOW=${WINDOW:-16}
+FLOWS=${FLOWS:-"1 2 4 8"}
+RTT_MS=${RTT_MS:-20}
+LOSS=${LOSS:-0}
+
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+WORK=${WORK:-/tmp/tcpend_bench}
+mkdir -p "$WORK/classes"
+javac -d "$WORK/classes" "$ROOT"/src/*.java "$ROOT"/bench/*.java || exit 1
+
+INPUT="$WORK/input_${SIZE_MB}MB.bin"
+if [ ! -f "$INPUT" ]; then
+    head -c $((SIZE_MB * 1024 * 1024)) /dev/urandom > "$INPUT"
+fi
+
+printf "%-8s %-8s %-10s %-12s %-16s\n" "flows" "window" "seconds" "Mbit/s" "retransmissions"
+for N in $FLOWS; do
+    OUTPUT="$WORK/striped.bin"
+    rm -f "$OUTPUT"
+    java -cp "$WORK/classes" LinkEmulator 27001 127.0.0.1 27002 "$RTT_MS" "$LOSS" > "$WORK/link.log" 2>&1 &
+    LINK=$!
+    java -cp "$WORK/classes" TCPend -p 27002 -m "$MTU" -c "$WINDOW" -f "$OUTPUT" -flows "$N" > "$WORK/receiver.log" 2>&1 &
+    RECEIVER=$!
+    sleep 1
+    START=$(date +%s.%N)
+    java -cp "$WORK/classes" TCPend -p 27101 -s 127.0.0.1 -a 27001 -f "$INPUT" -m "$MTU" -c "$WINDOW" -flows "$N" > "$WORK/sender.log" 2>&1
+    END=$(date +%s.%N)
+    wait $RECEIVER
+    kill $LINK 2>/dev/null
+    wait $LINK 2>/dev/null
+    if ! cmp -s "$INPUT" "$OUTPUT"; then
+        echo "flows $N: output file does not match input"
+        continue
+    fi
+    RETRANSMISSIONS=$(awk '/^Retransmissions:/ { n += $2 } END { print n + 0 }' "$WORK/sender.log")
+    awk -v n="$N" -v c="$WINDOW" -v s="$START" -v e="$END" -v mb="$SIZE_MB" -v r="$RETRANSMISSIONS" \
+        'BEGIN { t = e - s; printf "%-8s %-8s %-10.2f %-12.1f %-16s\n", n, c, t, mb * 8 * 1.048576 / t, r }'
+done
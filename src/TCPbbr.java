@@ -0,0 +1,195 @@
+/**
+ * Congestion control from a model of the path, after BBR.
+ * Loss is not taken as the signal of congestion, instead the controller measures the path and sends at what it can carry:
+ * -- Bottleneck bandwidth, the highest delivery rate over the last 10 rounds. A round is one minimum round trip time.
+ * -- Round trip propagation time, the lowest round trip time over the last 10 seconds.
+ * The pacing rate is the bandwidth times a gain and the window is twice the bandwidth delay product, so the path is kept full but not queued.
+ * -- STARTUP: a gain of 2/ln 2 doubles the rate every round until the bandwidth stops growing by 25% for 3 rounds.
+ * -- DRAIN: one round below the bandwidth to empty the queue STARTUP built up.
+ * -- PROBE_BW: a cycle of 8 rounds, one at 1.25 to look for more bandwidth, one at 0.75 to drain what that queued, 6 at 1.
+ * -- PROBE_RTT: when the minimum round trip time is 10 seconds old, 200 ms with a window of 4 segments to measure it again.
+ * Rounds are timed rather than counted in delivered data, as the sender doesn't tell the controller which segment an ACK was for.
+ */
+public class TCPbbr implements TCPcongestionControl {
+
+    private static final int STARTUP = 0;
+    private static final int DRAIN = 1;
+    private static final int PROBE_BW = 2;
+    private static final int PROBE_RTT = 3;
+
+    private static final double HIGH_GAIN = 2 / Math.log(2);
+    private static final double[] PROBE_BW_GAINS = { 1.25, 0.75, 1, 1, 1, 1, 1, 1 };
+    private static final int BANDWIDTH_ROUNDS = 10; // Rounds the bandwidth filter keeps its maximum for
+    private static final long MIN_RTT_LIFETIME = 10 * 1000000000L; // Nanoseconds before the minimum round trip time is measured again
+    private static final long PROBE_RTT_TIME = 200 * 1000000L; // Nanoseconds PROBE_RTT holds the window down
+    private static final int MIN_WINDOW = 4;
+
+    private int maxWindow;
+    private int segmentSize;
+    private int state;
+    private int window; // Segments that may be in flight
+    private double pacingGain;
+    private double windowGain;
+
+    // Bottleneck bandwidth, windowed maximum of the delivery rate per round
+    private long[] bandwidthSamples; // Bytes per second, one per round
+    private int bandwidthRound; // Rounds measured so far
+    private long bandwidth; // Maximum of the samples
+
+    // Round trip propagation time
+    private long minRtt; // Nanoseconds, 0 until the first sample
+    private long minRttStamp; // nanoTime minRtt was measured
+
+    // Current round
+    private long roundStart; // nanoTime the round started, 0 before the first ACK
+    private int deliveredInRound; // Segments acknowledged in the round
+
+    // STARTUP exit
+    private long fullBandwidth; // Bandwidth when it last grew by 25%
+    private int fullBandwidthRounds; // Rounds since then
+    private boolean fullBandwidthReached;
+
+    private int cycleIndex; // Position in PROBE_BW_GAINS
+    private long probeRttEnd; // nanoTime PROBE_RTT ends
+
+    public TCPbbr(int maxWindow, int segmentSize) {
+        this.maxWindow = maxWindow;
+        this.segmentSize = segmentSize;
+        this.window = Math.min(MIN_WINDOW, maxWindow);
+        this.bandwidthSamples = new long[BANDWIDTH_ROUNDS];
+        enterState(STARTUP);
+    }
+
+    public void onAck(int segmentsAcked, boolean inRecovery, long now) {
+        if (this.roundStart == 0) {
+            this.roundStart = now;
+        }
+        this.deliveredInRound += segmentsAcked;
+
+        // A round ends once a minimum round trip time has passed, the data delivered in it is one bandwidth sample
+        if (this.minRtt > 0 && now - this.roundStart >= this.minRtt) {
+            addBandwidthSample((long) (this.deliveredInRound * (double) this.segmentSize * 1e9 / (now - this.roundStart)));
+            this.roundStart = now;
+            this.deliveredInRound = 0;
+            onRoundEnd(now);
+        }
+
+        // The window grows by what was acknowledged until it reaches the target, before the pipe is full it is not held back
+        int target = targetWindow();
+        if (this.state == PROBE_RTT) {
+            this.window = Math.min(MIN_WINDOW, this.maxWindow);
+        } else if (this.fullBandwidthReached) {
+            this.window = Math.min(this.window + segmentsAcked, target);
+        } else if (this.window < target || this.bandwidth == 0) {
+            this.window += segmentsAcked;
+        }
+        this.window = Math.max(Math.min(this.window, this.maxWindow), Math.min(MIN_WINDOW, this.maxWindow));
+    }
+
+    public void onLoss(boolean timeout, int segmentsInFlight, long now) {
+        // Loss is not a congestion signal for the model, only a timeout means the window was far too large
+        if (timeout) {
+            this.window = Math.min(MIN_WINDOW, this.maxWindow);
+        }
+    }
+
+    public void onRtt(long rttNanos, long now) {
+        if (rttNanos <= 0) {
+            return;
+        }
+        // A lower sample replaces the minimum, in PROBE_RTT an expired minimum is replaced by whatever is measured
+        if (this.minRtt == 0 || rttNanos <= this.minRtt || (this.state == PROBE_RTT && now - this.minRttStamp > MIN_RTT_LIFETIME)) {
+            this.minRtt = rttNanos;
+            this.minRttStamp = now;
+        }
+        // Measure the round trip time again once it is too old
+        if (this.state != PROBE_RTT && now - this.minRttStamp > MIN_RTT_LIFETIME) {
+            enterState(PROBE_RTT);
+            this.probeRttEnd = now + Math.max(PROBE_RTT_TIME, this.minRtt);
+        }
+    }
+
+    public int getWindow() {
+        return this.window;
+    }
+
+    public long getPacingRate() {
+        return (long) (this.pacingGain * this.bandwidth);
+    }
+
+    public String getName() {
+        return "bbr";
+    }
+
+    private void onRoundEnd(long now) {
+        switch (this.state) {
+            case STARTUP:
+                // The pipe is full once the bandwidth stops growing by 25% a round
+                if (this.bandwidth >= this.fullBandwidth * 1.25) {
+                    this.fullBandwidth = this.bandwidth;
+                    this.fullBandwidthRounds = 0;
+                } else if (++this.fullBandwidthRounds >= 3) {
+                    this.fullBandwidthReached = true;
+                    enterState(DRAIN);
+                }
+                break;
+            case DRAIN:
+                enterState(PROBE_BW);
+                break;
+            case PROBE_BW:
+                this.cycleIndex = (this.cycleIndex + 1) % PROBE_BW_GAINS.length;
+                this.pacingGain = PROBE_BW_GAINS[this.cycleIndex];
+                break;
+            case PROBE_RTT:
+                if (now - this.probeRttEnd >= 0) {
+                    this.minRttStamp = now;
+                    enterState(this.fullBandwidthReached ? PROBE_BW : STARTUP);
+                }
+                break;
+        }
+    }
+
+    private void enterState(int state) {
+        this.state = state;
+        switch (state) {
+            case STARTUP:
+                this.pacingGain = HIGH_GAIN;
+                this.windowGain = HIGH_GAIN;
+                break;
+            case DRAIN:
+                this.pacingGain = 1 / HIGH_GAIN;
+                this.windowGain = HIGH_GAIN;
+                break;
+            case PROBE_BW:
+                // Start the cycle past the probing round so the queue from STARTUP is not added to
+                this.cycleIndex = 2;
+                this.pacingGain = PROBE_BW_GAINS[this.cycleIndex];
+                this.windowGain = 2;
+                break;
+            case PROBE_RTT:
+                this.pacingGain = 1;
+                this.windowGain = 1;
+                break;
+        }
+    }
+
+    // Keep the maximum of the last BANDWIDTH_ROUNDS samples
+    private void addBandwidthSample(long sample) {
+        this.bandwidthSamples[this.bandwidthRound % BANDWIDTH_ROUNDS] = sample;
+        this.bandwidthRound++;
+        long max = 0;
+        for (long value : this.bandwidthSamples) {
+            max = Math.max(max, value);
+        }
+        this.bandwidth = max;
+    }
+
+    // Window gain times the bandwidth delay product in segments
+    private int targetWindow() {
+        if (this.bandwidth == 0 || this.minRtt == 0) {
+            return this.window;
+        }
+        double bdp = this.bandwidth * (this.minRtt / 1e9) / this.segmentSize;
+        return Math.max((int) Math.ceil(this.windowGain * bdp), MIN_WINDOW);
+    }
+}
@@ -0,0 +1,89 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * One's complement checksum used by TCPheader.
+ * The packet is treated as big endian 16 bit words, an odd last byte is padded with 0.
+ * -- The sum reads 64 bits at a time and adds the two 32 bit halves into a long, carries are folded back in at the end.
+ * -- When a single field changes, the checksum is updated from the old and new value of the field (RFC 1624, eqn. 3)
+ *    instead of summing the whole packet again.
+ */
+public final class TCPchecksum {
+
+    private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT_VIEW = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private TCPchecksum() {
+    }
+
+    /**
+     * Sum the bytes as 16 bit words in one's complement arithmetic.
+     * @param data
+     * @param offset must be even relative to the start of the packet
+     * @param length
+     * @return the folded 16 bit sum
+     */
+    public static int sum(byte[] data, int offset, int length) {
+        long sum = 0;
+        int i = offset;
+        int end = offset + length;
+
+        // 8 bytes at a time, each 32 bit half is below 2^32 so the long can't overflow for any array
+        while (end - i >= 8) {
+            long word = (long) LONG_VIEW.get(data, i);
+            sum += (word >>> 32) + (word & 0xFFFFFFFFL);
+            i += 8;
+        }
+        if (end - i >= 4) {
+            sum += (int) INT_VIEW.get(data, i) & 0xFFFFFFFFL;
+            i += 4;
+        }
+        if (end - i >= 2) {
+            sum += ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+            i += 2;
+        }
+        if (i < end) {
+            // Pad the last byte with 0
+            sum += (data[i] & 0xFF) << 8;
+        }
+
+        return fold(sum);
+    }
+
+    /**
+     * Calculate the checksum to store in a packet, the one's complement of the sum.
+     * Summing a packet that already holds a valid checksum gives 0.
+     * @param packet
+     * @param length
+     * @return checksum in the low 16 bits
+     */
+    public static int calculate(byte[] packet, int length) {
+        return ~sum(packet, 0, length) & 0xFFFF;
+    }
+
+    /**
+     * Update a stored checksum after a 64 bit field aligned on a 16 bit word changed, RFC 1624 eqn. 3: HC' = ~(~HC + ~m + m').
+     * @param checksum checksum currently stored in the packet
+     * @param oldValue previous value of the field
+     * @param newValue new value of the field
+     * @return checksum in the low 16 bits
+     */
+    public static int updateLong(int checksum, long oldValue, long newValue) {
+        long sum = ~checksum & 0xFFFF;
+        for (int shift = 0; shift < 64; shift += 16) {
+            sum += ~(oldValue >>> shift) & 0xFFFF;
+            sum += (newValue >>> shift) & 0xFFFF;
+        }
+        return ~fold(sum) & 0xFFFF;
+    }
+
+    // Fold the carries back into the low 16 bits
+    private static int fold(long sum) {
+        sum = (sum & 0xFFFFFFFFL) + (sum >>> 32);
+        sum = (sum & 0xFFFFL) + (sum >>> 16);
+        sum = (sum & 0xFFFFL) + (sum >>> 16);
+        sum = (sum & 0xFFFFL) + (sum >>> 16);
+        return (int) sum;
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Congestion controller for the sender, decides how many segments may be in flight and how fast they may be sent.
+ * The sender keeps the loss recovery itself (which segments to resend, fast recovery, SACK) and tells the controller what happened:
+ * -- onAck for every ACK that moves the cumulative acknowledgment forward,
+ * -- onLoss once when fast recovery starts and once for each round of timeout resends,
+ * -- onRtt for every round trip time sample.
+ * The window is counted in segments and never goes above the window size given with -c.
+ * Implementations: reno (TCPnewReno), cubic (TCPcubic) and bbr (TCPbbr).
+ */
+public interface TCPcongestionControl {
+
+    /**
+     * Segments were acknowledged by a new cumulative ACK.
+     * @param segmentsAcked number of segments the ACK retired
+     * @param inRecovery true while the sender is in fast recovery
+     * @param now nanoTime
+     */
+    void onAck(int segmentsAcked, boolean inRecovery, long now);
+
+    /**
+     * A segment was lost.
+     * @param timeout true for a timeout, false for the start of fast recovery
+     * @param segmentsInFlight number of segments sent and not yet acknowledged when the loss was found
+     * @param now nanoTime
+     */
+    void onLoss(boolean timeout, int segmentsInFlight, long now);
+
+    /**
+     * A round trip time was measured.
+     * @param rttNanos
+     * @param now nanoTime
+     */
+    void onRtt(long rttNanos, long now);
+
+    /**
+     * Number of segments that may be in flight.
+     */
+    int getWindow();
+
+    /**
+     * Rate the segments should be sent at in bytes per second, 0 if the controller leaves it to the window.
+     */
+    long getPacingRate();
+
+    /**
+     * Name used on the command line.
+     */
+    String getName();
+
+    /**
+     * Create a controller from its command line name.
+     * @param name reno, cubic or bbr
+     * @param maxWindow window size in segments
+     * @param segmentSize bytes in a full segment
+     * @return the controller, or null if the name is not known
+     */
+    static TCPcongestionControl create(String name, int maxWindow, int segmentSize) {
+        if (name.equals("reno")) {
+            return new TCPnewReno(maxWindow);
+        } else if (name.equals("cubic")) {
+            return new TCPcubic(maxWindow);
+        } else if (name.equals("bbr")) {
+            return new TCPbbr(maxWindow, segmentSize);
+        }
+        return null;
+    }
+}
@@ -1,13 +1,20 @@
 import java.io.*;
-import java.util.ArrayList;
-import java.net.DatagramSocket;
-import java.net.DatagramPacket;
+import java.util.concurrent.locks.LockSupport;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class TCPconnection {
 
+    private static final int SERVER_LOG_EVENTS = 1 << 12; // Events the log of a connection attached to a TCPserver holds
+
     // Flags for which end of TCP this is
     private byte TCP_sender = 1;
     private byte TCP_receiver = 2;
@@ -30,15 +37,68 @@ public class TCPconnection {
     private int finBytSeqNum; // Byte sequence number of the FIN packet
 
     // Communication variables
-    private DatagramSocket socket; // Socket for communication
+    private DatagramChannel channel; // Non blocking channel for communication
+    private Selector selector; // Wakes the connection when the channel has a packet
+    private InetSocketAddress targetSocketAddress; // Address packets are sent to
+    private InetSocketAddress lastSourceAddress; // Address the last packet was received from
+    private ByteBuffer outBuffer; // Reused for every packet sent while the message buffer stays the same
+    private byte[] receiveBuffer; // Received messages are views over this buffer, replaced when a message is held on to
+    private ByteBuffer receiveView; // View over the receive buffer for the channel
+    private long receiveWaitNanos; // Longest wait for a packet when no timer is due
+    private long receiveDeadline; // nanoTime the next timer is due, used by the next receive only, 0 when no timer is running
+    private BlockingQueue<byte[]> inbound; // Datagrams from the client a TCPserver demultiplexed to this connection, null when the connection has its own channel
 
     // Message variables
-    private ArrayList <TCPmessageStatus> messageListIn; // Buffer for messages in
-    private ArrayList <TCPmessageStatus> messageListOut; // Buffer for messages out
+    private TCPreorderBuffer messageBufferIn; // Ring buffer of messages in ahead of the next expected byte, indexed by byte sequence number
+    private TCPmessageStatus finMessageIn; // FIN received from the client
+
+    // Receiver ACK policy, in order segments are acknowledged together rather than one ACK each
+    private int ackEverySegments = 2; // ACK once this many full segments are waiting
+    private long ackDelayNanos = 10 * 1000000L; // Longest an ACK is held back
+    private int unackedSegments; // In order segments written but not yet acknowledged
+    private long unackedSince; // When the oldest of those segments was written
+    private long unackedTimestamp; // Timestamp of the oldest of those segments, echoed in the ACK
+    private TCPsendWindow messageWindowOut; // Ring buffer of messages out, indexed by byte sequence number
+    private TCPtimerWheel retransmitTimers; // Retransmission timer of every segment in flight, stopped when it is acknowledged
+
+    // Selective acknowledgment, the receiver reports the runs it holds past a gap and the sender only resends the holes
+    private int sackBlocksMax = TCPoptions.MAX_SACK_BLOCKS; // Most SACK blocks in an ACK, 0 turns SACK off
+    private boolean sackEnabled; // Both ends sent SACK permitted in the handshake
+    private int[] sackBlocks = new int[2 * TCPoptions.MAX_SACK_BLOCKS]; // Start and end of each block of the ACK being built or read
+
+    // Striped transfer, a file split into byte ranges sent over several connections at once, each connection carries one range
+    private long[] stripe; // Offset, length, index and count of the range this connection carries, null when it carries the whole file
+    private int stripesExpected; // Server only, number of ranges the file is split into, 0 when the file is not striped
+
+    // Congestion control, only used by the client
+    private TCPcongestionControl congestionControl; // Sets the window clientSendData fills
+    private int pacingBurst = 4; // Segments the pacer lets go back to back, 0 sends each window without pacing
+    private TCPpacer pacer; // Spreads new segments over the round trip, null when pacing is off
+
+    // Read-ahead, only used by the client
+    private static final long PREFETCH_RETRY_NANOS = 250 * 1000L; // How soon the send loop asks again when the next chunk hasn't been read yet
+    private int prefetchWindows = 4; // Windows of chunks read ahead of the send loop, 0 reads the file in the send loop
+    private TCPprefetcher prefetcher; // Reads the file on its own thread, null when read-ahead is off
+
+    // Write-behind, only used by the server
+    private int writeQueueWindows = 4; // Windows of data queued for the disk writer, 0 writes the file in the receive loop
+    private TCPdiskWriter diskWriter; // Writes the file on its own thread, null when write-behind is off
+
+    // Segment size, both ends send the largest they take in the handshake and use the smaller one, a path MTU probe can lower it further
+    public static final int MAX_SEGMENT_SIZE = 65507 - 24; // Largest UDP payload less the header
+    private static final int PROBE_FLOOR = 548 - 24; // Every IPv4 path carries a 576 byte packet, 548 bytes of it UDP payload
+    private static final int PROBES_PER_ROUND = 8; // Sizes probed at once, each round narrows the range about this many times
+    private static final int PROBE_ATTEMPTS = 2; // Sends of a size before it counts as lost, so one random loss doesn't lower it
+    private static final int PROBE_RESOLUTION = 32; // The probe stops once the largest segment size through and the smallest lost are this close
+    private boolean probePathMtu; // Client only, probe for the largest datagram that gets to the server after the handshake
+    private int offeredSegmentSize; // Segment size this end sent in the handshake, the -m value
+    private int probesSent; // Probe datagrams sent, resends included
+    private long probeNanos; // Time the probe took, announcing the new segment size included
 
     // Other Attributes
     private boolean extra_logging = true; // Change this flag based on level of logging needed
-    private int maxBytes = 1518; // Maximum bytes to expect in a packet
+    private TCPeventLog eventLog; // One line per packet, printed from a background thread, created once communication starts
+    private int maxBytes; // Largest packet expected, a full segment or a dataless packet with the most options
     private int maxRetries; // Maximum number of retries for sending a packet
 
     // Project specific parametrs
@@ -48,6 +108,7 @@ public class TCPconnection {
     private int badChecksumPacketsDiscarded; // Number of packets discarded due to bad checksum
     private int retransmissions; // Number of retransmissions
     private int duplicateAcksGlobal; // Number of duplicate ACKs received
+    private int fastRetransmissions; // Number of retransmissions triggered by duplicate ACKs
 
     /**
      * This is for creating a new instance of TCPconnection for a client
@@ -64,7 +125,11 @@ public class TCPconnection {
         this.isConnected = false;
         this.isClosed = true;
         this.fileHandler = fileHandler;
+        this.communicationPort = communicationPort;
         this.targetPort = targetPort;
+        this.maxUnitSize = maxUnitSize;
+        this.offeredSegmentSize = maxUnitSize;
+        this.maxBytes = maxBytesFor(maxUnitSize);
         this.maxUnits = maxUnits;
         this.maxRetries = 16;
         try {
@@ -73,15 +138,15 @@ public class TCPconnection {
             System.out.println("Error: " + e.getMessage());
             this.targetIPAddress = null;
         }
-        this.messageListIn = new ArrayList <TCPmessageStatus>();
-        this.messageListOut = new ArrayList <TCPmessageStatus>();
         this.timeout = new TCPtimeout();
+        this.congestionControl = new TCPnewReno(maxUnits);
         // Project specific parametrs
         this.packetsSent = 0; // Number of packets sent
         this.packetsReceived = 0; // Number of packets received
         this.badChecksumPacketsDiscarded = 0; // Number of packets discarded due to bad checksum
         this.retransmissions = 0; // Number of retransmissions
         this.duplicateAcksGlobal = 0; // Number of duplicate ACKs received
+        this.fastRetransmissions = 0; // Number of retransmissions triggered by duplicate ACKs
     }
 
     /**
@@ -100,9 +165,9 @@ public class TCPconnection {
         this.fileHandler = fileHandler;
         this.communicationPort = communicationPort;
         this.maxUnitSize = maxUnitSize;
+        this.offeredSegmentSize = maxUnitSize;
+        this.maxBytes = maxBytesFor(maxUnitSize);
         this.maxUnits = maxUnits;
-        this.messageListIn = new ArrayList <TCPmessageStatus>();
-        this.messageListOut = new ArrayList <TCPmessageStatus>();
         this.timeout = new TCPtimeout();
         this.maxRetries = 16;
         // Project specific parametrs
@@ -114,15 +179,235 @@ public class TCPconnection {
         this.duplicateAcksGlobal = 0; // Number of duplicate ACKs sent
     }
 
+    /**
+     * Set how the receiver acknowledges in order segments, -1 keeps the current value.
+     * @param ackEverySegments ACK once this many full segments are waiting, 1 ACKs every segment
+     * @param ackDelayMillis longest an ACK is held back waiting for more segments
+     * @return false if a value is out of range
+     */
+    public boolean setAckPolicy(int ackEverySegments, int ackDelayMillis) {
+        if (checkAckPolicy(ackEverySegments, ackDelayMillis) == false) {
+            return false;
+        }
+        if (ackEverySegments != -1) {
+            this.ackEverySegments = ackEverySegments;
+        }
+        if (ackDelayMillis != -1) {
+            this.ackDelayNanos = ackDelayMillis * 1000000L;
+        }
+        return true;
+    }
+
+
+    /**
+     * Set the most SACK blocks the receiver puts in an ACK, 0 turns SACK off for this end.
+     * SACK is only used when both ends offer it in the handshake.
+     * @param sackBlocksMax
+     * @return false if the value is out of range
+     */
+    public boolean setSackBlocks(int sackBlocksMax) {
+        if (checkSackBlocks(sackBlocksMax) == false) {
+            return false;
+        }
+        this.sackBlocksMax = sackBlocksMax;
+        return true;
+    }
+
+    /**
+     * Choose the congestion controller of the client, reno is used if none is chosen.
+     * @param name reno, cubic or bbr
+     * @return false if the name is not known
+     */
+    public boolean setCongestionControl(String name) {
+        TCPcongestionControl congestionControl = TCPcongestionControl.create(name, this.maxUnits, this.fileHandler.getMaxChunkSize());
+        if (congestionControl == null) {
+            System.out.println("Congestion control must be reno, cubic or bbr.");
+            return false;
+        }
+        this.congestionControl = congestionControl;
+        return true;
+    }
+
+    /**
+     * Set how many segments the client's pacer lets go back to back, 0 turns pacing off.
+     * @param burstSegments
+     * @return false if the value is out of range
+     */
+    public boolean setPacing(int burstSegments) {
+        if (burstSegments < 0 || burstSegments > this.maxUnits) {
+            System.out.println("Pacing burst must be from 0 to the window size.");
+            return false;
+        }
+        this.pacingBurst = burstSegments;
+        return true;
+    }
+
+    /**
+     * Set how many windows of the file the client reads ahead on a thread of its own, 0 reads it in the send loop.
+     * @param windows
+     * @return false if the value is out of range
+     */
+    public boolean setPrefetch(int windows) {
+        if (windows < 0 || windows > 64) {
+            System.out.println("Prefetch must be from 0 to 64 windows.");
+            return false;
+        }
+        this.prefetchWindows = windows;
+        return true;
+    }
+
+    /**
+     * Set whether the client probes for the largest datagram that gets to the server before it sends the file.
+     * @param enabled
+     */
+    public void setPathMtuProbe(boolean enabled) {
+        this.probePathMtu = enabled;
+    }
+
+    /**
+     * Set how many windows of data the server queues for a disk writer thread, 0 writes the file in the receive loop.
+     * @param windows
+     * @return false if the value is out of range
+     */
+    public boolean setWriteQueue(int windows) {
+        if (checkWriteQueue(windows) == false) {
+            return false;
+        }
+        this.writeQueueWindows = windows;
+        return true;
+    }
+
+    /**
+     * Check the receiver's options without a connection, for a server that sets up a connection per client with them.
+     * Each option is checked as its setter checks it, what is wrong is printed.
+     * @param ackEverySegments -1 if not given
+     * @param ackDelayMillis -1 if not given
+     * @param sackBlocksMax -1 if not given
+     * @param writeQueueWindows -1 if not given
+     * @return false if a value is out of range
+     */
+    public static boolean checkReceiverOptions(int ackEverySegments, int ackDelayMillis, int sackBlocksMax, int writeQueueWindows) {
+        return checkAckPolicy(ackEverySegments, ackDelayMillis)
+            && (sackBlocksMax == -1 || checkSackBlocks(sackBlocksMax))
+            && (writeQueueWindows == -1 || checkWriteQueue(writeQueueWindows));
+    }
+
+    private static boolean checkAckPolicy(int ackEverySegments, int ackDelayMillis) {
+        if (ackEverySegments == 0 || ackEverySegments < -1 || ackDelayMillis < -1) {
+            System.out.println("ACK every must be at least 1 segment and the ACK delay at least 0 ms.");
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean checkSackBlocks(int sackBlocksMax) {
+        if (sackBlocksMax < 0 || sackBlocksMax > TCPoptions.MAX_SACK_BLOCKS) {
+            System.out.println("SACK blocks must be from 0 to " + TCPoptions.MAX_SACK_BLOCKS + ".");
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean checkWriteQueue(int windows) {
+        if (windows < 0 || windows > 64) {
+            System.out.println("Write queue must be from 0 to 64 windows.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Send one byte range of the file instead of all of it, the range goes to the server in the SYN.
+     * @param offset file offset of the first byte of the range
+     * @param length bytes in the range
+     * @param index range number, from 0
+     * @param count number of ranges the file is split into
+     * @return false if the values are out of range
+     */
+    public boolean setStripe(long offset, long length, int index, int count) {
+        if (offset < 0 || length < 0 || count < 1 || count > 0xFFFF || index < 0 || index >= count) {
+            System.out.println("A stripe needs a range inside the file and an index below the number of ranges, at most 65535.");
+            return false;
+        }
+        this.stripe = new long[] { offset, length, index, count };
+        this.fileHandler.setReadRange(offset, length);
+        return true;
+    }
+
+    /**
+     * Receive one byte range of a striped file, the client's SYN says which one and it is written at its offset.
+     * A SYN without a range, or for a file split into a different number of ranges, is refused.
+     * @param count number of ranges the file is split into
+     * @return false if the value is out of range
+     */
+    public boolean expectStripes(int count) {
+        if (count < 1 || count > 0xFFFF) {
+            System.out.println("A striped file must be split into 1 to 65535 ranges.");
+            return false;
+        }
+        this.stripesExpected = count;
+        return true;
+    }
+
+    /**
+     * Get the byte range the connection carries.
+     * @return offset, length, index and count of the range, null when the connection carries the whole file
+     */
+    public long[] getStripe() {
+        return this.stripe;
+    }
+
+    // Bytes of file data written or read so far
+    public long getTotalData() {
+        return this.fileHandler.totalData;
+    }
+
+    /**
+     * Serve one client of a TCPserver instead of opening a channel of its own.
+     * Replies go out on the server's channel, packets come from the queue the server's demultiplexer fills for this client.
+     * @param channel the server's channel, it stays open when the connection ends
+     * @param inbound datagrams received from the client, oldest first, each array is exactly one datagram
+     * @param client address and port of the client
+     */
+    public void attachToServer(DatagramChannel channel, BlockingQueue<byte[]> inbound, InetSocketAddress client) {
+        this.channel = channel;
+        this.inbound = inbound;
+        this.lastSourceAddress = client;
+    }
+
+    // Largest packet a connection with this segment size can receive, a full segment or a dataless packet with the most options
+    public static int maxBytesFor(int segmentSize) {
+        return 24 + Math.max(segmentSize, TCPoptions.MAX_LENGTH);
+    }
+
+    /**
+     * Lower the segment size, the receive buffer is sized to a full segment of the new size from the next receive on.
+     * The client's congestion controller is built again for the new size, it is only called before any data is sent so it has no state to keep.
+     * @param segmentSize
+     */
+    private void setSegmentSize(int segmentSize) {
+        this.maxUnitSize = segmentSize;
+        this.maxBytes = maxBytesFor(segmentSize);
+        this.receiveBuffer = null;
+        if (this.TCPmode == TCP_sender) {
+            this.fileHandler.setMaxChunkSize(segmentSize);
+            this.congestionControl = TCPcongestionControl.create(this.congestionControl.getName(), this.maxUnits, segmentSize);
+        }
+    }
 
     /**
      * This is for after all initial validation is completed and the communication can be started.
      * @return True if successful, false if not
      */
     public boolean performTCPcommunication() {
-        
-        // Open the ports for communication and for listening
-        this.socket = createSocket(communicationPort);
+
+        // A server can have hundreds of connections open, each logs into a smaller ring
+        this.eventLog = this.inbound != null ? new TCPeventLog(SERVER_LOG_EVENTS) : new TCPeventLog();
+
+        // Open the ports for communication and for listening, a connection attached to a server uses the server's
+        if (this.inbound == null && createChannel(communicationPort) == false) {
+            return false;
+        }
 
         this.isOpen = true;
         this.isConnected = false;
@@ -130,13 +415,8 @@ public class TCPconnection {
 
         // Establish the TCP connection
         if (this.TCPmode == TCP_sender) {
-            // Set the socket timer to 150 milliseconds
-            try {
-                this.socket.setSoTimeout(150);
-            } catch (SocketException e) {
-                System.out.println("Error setting socket timeout: " + e.getMessage());
-                return false;
-            }
+            // Wait at most 150 milliseconds for a packet when no timer is due
+            this.receiveWaitNanos = 150 * 1000000L;
             // Client mode
             System.out.println("Establishing TCP connection to " + this.targetIPAddress + ":" + this.targetPort + "...");
             if (!clientEstablishTCPconnection()) {
@@ -145,17 +425,24 @@ public class TCPconnection {
                 return false;
             }
 
-            // Create the data tracker
+            // Probe the path before the file is read ahead, the segment size may still come down
+            if (this.probePathMtu && !clientProbePathMtu()) {
+                System.out.println("Failed to settle the segment size with the path MTU probe.");
+                this.endTCPcommunication();
+                return false;
+            }
+
+            // Create the data tracker, the file is read ahead from here on so the first window is ready when sending starts
             this.dataTracker = new TCPdataTracker(true, this.maxUnitSize, this.maxUnits, this.fileHandler);
+            if (this.prefetchWindows > 0) {
+                this.prefetcher = new TCPprefetcher(this.fileHandler, this.prefetchWindows * this.maxUnits, this.fileHandler.getMaxChunkSize());
+                this.dataTracker.setPrefetcher(this.prefetcher);
+                this.prefetcher.start();
+            }
 
         } else if (this.TCPmode == TCP_receiver) {
-            // Set the socket timer to 100 milliseconds
-            try {
-                this.socket.setSoTimeout(100);
-            } catch (SocketException e) {
-                System.out.println("Error setting socket timeout: " + e.getMessage());
-                return false;
-            }
+            // Wait at most 100 milliseconds for a packet when no timer is due
+            this.receiveWaitNanos = 100 * 1000000L;
             // Server mode
             System.out.println("Waiting for incoming TCP connection on port " + this.communicationPort + "...");
             if (!serverOpenListeningState()) {
@@ -164,8 +451,13 @@ public class TCPconnection {
                 return false;
             }
 
-            // Create the data tracker
+            // Create the data tracker, in order data is ACKed once it is queued for the disk writer
             this.dataTracker = new TCPdataTracker(false, this.maxUnitSize, this.maxUnits, this.fileHandler);
+            if (this.writeQueueWindows > 0) {
+                this.diskWriter = new TCPdiskWriter(this.fileHandler, this.writeQueueWindows * this.maxUnits, this.maxBytes - 24);
+                this.dataTracker.setDiskWriter(this.diskWriter);
+                this.diskWriter.start();
+            }
         }
         this.isConnected = true;
         this.isClosed = false;
@@ -223,12 +515,27 @@ public class TCPconnection {
      */
     public void endTCPcommunication() {
         
-        // Close the sockets
+        // Close the sockets, the channel of a server is left to the server
         try {
-            this.socket.close();
+            if (this.selector != null) {
+                this.selector.close();
+            }
+            if (this.channel != null && this.inbound == null) {
+                this.channel.close();
+            }
         } catch (Exception e) {
             System.out.println("Error closing sockets: " + e.getMessage());
         }
+        // Stop reading ahead and write out the queued data, then release the file
+        if (this.prefetcher != null) {
+            this.prefetcher.close();
+        }
+        if (this.diskWriter != null) {
+            this.diskWriter.close();
+        }
+        this.fileHandler.close();
+        // Print the remaining packet lines before the statistics
+        this.eventLog.close();
         this.isOpen = false;
         this.isConnected = false;
         this.isClosed = true;
@@ -247,27 +554,55 @@ public class TCPconnection {
     }
 
     public void printStatisticsServer() {
-        System.out.println("---------------------------------");
-        System.out.println("TCP Server connection statistics:");
-        System.out.println("Data Received: " + this.fileHandler.totalData + " bytes");
-        System.out.println("Packets sent: " + this.packetsSent);
-        System.out.println("Packets received: " + this.packetsReceived);
-        System.out.println("Out of sequence packets discarded: " + this.outOfSequencePacketsDiscarded);
-        System.out.println("Packets discarded due to incorrect checksum: " + this.badChecksumPacketsDiscarded);
-        System.out.println("Retransmissions: " + this.retransmissions);
-        System.out.println("Duplicate ACKs sent: " + this.duplicateAcksGlobal);
+        // Printed in one go, connections of a server finish on different threads
+        StringBuilder statistics = new StringBuilder();
+        statistics.append("---------------------------------\n");
+        statistics.append("TCP Server connection statistics").append(this.inbound != null ? " for " + this.lastSourceAddress : "");
+        statistics.append(this.stripe != null ? ", range " + (this.stripe[2] + 1) + " of " + this.stripe[3] : "").append(":\n");
+        statistics.append("Data Received: " + this.fileHandler.totalData + " bytes\n");
+        statistics.append("Segment size: " + this.maxUnitSize + " bytes\n");
+        statistics.append("Packets sent: " + this.packetsSent + "\n");
+        statistics.append("Packets received: " + this.packetsReceived + "\n");
+        statistics.append("Out of sequence packets discarded: " + this.outOfSequencePacketsDiscarded + "\n");
+        statistics.append("Packets discarded due to incorrect checksum: " + this.badChecksumPacketsDiscarded + "\n");
+        statistics.append("Retransmissions: " + this.retransmissions + "\n");
+        statistics.append("Duplicate ACKs sent: " + this.duplicateAcksGlobal + "\n");
+        if (this.diskWriter != null) {
+            statistics.append(String.format("Write queue: %.1f of %d segments waiting on average, full %d times for %.1f ms, writer wrote for %.1f ms\n",
+                this.diskWriter.getAverageDepth(), this.diskWriter.getCapacity(), this.diskWriter.getFullWaits(),
+                this.diskWriter.getFullWaitNanos() / 1e6, this.diskWriter.getWriteNanos() / 1e6));
+        }
+        if (this.fileHandler.totalData > 0) {
+            statistics.append(String.format("Packets sent per KB received: %.3f\n", this.packetsSent * 1024.0 / this.fileHandler.totalData));
+        }
+        System.out.print(statistics);
     }
 
     public void printStatisticsClient() {
-        System.out.println("---------------------------------");
-        System.out.println("TCP Client connection statistics:");
-        System.out.println("Data Sent: " + this.fileHandler.totalData + " bytes");
-        System.out.println("Packets sent: " + this.packetsSent);
-        System.out.println("Packets received: " + this.packetsReceived);
-        System.out.println("Out of sequence packets discarded: " + this.outOfSequencePacketsDiscarded);
-        System.out.println("Packets discarded due to incorrect checksum: " + this.badChecksumPacketsDiscarded);
-        System.out.println("Retransmissions: " + this.retransmissions);
-        System.out.println("Duplicate ACKs received: " + this.duplicateAcksGlobal);
+        // Printed in one go, the connections of a striped transfer finish on different threads
+        StringBuilder statistics = new StringBuilder();
+        statistics.append("---------------------------------\n");
+        statistics.append("TCP Client connection statistics").append(this.stripe != null ? " for range " + (this.stripe[2] + 1) + " of " + this.stripe[3] : "").append(":\n");
+        statistics.append("Data Sent: " + this.fileHandler.totalData + " bytes\n");
+        statistics.append("Segment size: " + this.maxUnitSize + " bytes");
+        if (this.probePathMtu) {
+            statistics.append(String.format(", path MTU probe of %d datagrams in %.1f ms", this.probesSent, this.probeNanos / 1e6));
+        }
+        statistics.append("\n");
+        statistics.append("Packets sent: " + this.packetsSent + "\n");
+        statistics.append("Packets received: " + this.packetsReceived + "\n");
+        statistics.append("Out of sequence packets discarded: " + this.outOfSequencePacketsDiscarded + "\n");
+        statistics.append("Packets discarded due to incorrect checksum: " + this.badChecksumPacketsDiscarded + "\n");
+        statistics.append("Retransmissions: " + this.retransmissions + "\n");
+        statistics.append("Fast retransmissions: " + this.fastRetransmissions + "\n");
+        statistics.append("Congestion control: " + this.congestionControl.getName() + ", final window " + this.congestionControl.getWindow() + " segments\n");
+        statistics.append("Duplicate ACKs received: " + this.duplicateAcksGlobal + "\n");
+        if (this.prefetcher != null) {
+            statistics.append(String.format("Prefetch: %.1f of %d chunks ready on average, empty %d times, reader waited %.1f ms on a full queue and read for %.1f ms\n",
+                this.prefetcher.getAverageDepth(), this.prefetcher.getCapacity(), this.prefetcher.getEmptyTakes(),
+                this.prefetcher.getReaderWaitNanos() / 1e6, this.prefetcher.getReadNanos() / 1e6));
+        }
+        System.out.print(statistics);
     }
 
     /**************************************************** Server communication methods ****************************************************/
@@ -276,28 +611,24 @@ public class TCPconnection {
      * This method is for when the server is attempting to establish a connection with the client.
      */
     public boolean serverOpenListeningState() {
-        // DatagramPacket workingPacket = new DatagramPacket(buffer, buffer.length);
-        DatagramPacket responsePacket = null;
+        TCPmessageStatus tcpMessageRCVinit = null;
         TCPmessageStatus tcpMessageRCVack = null;
-        int attempts = 0;
+        int attempts;
         long lastSentTime;
 
         lastSentTime = System.nanoTime();
+        long maxListenTime = 60 * 1000000000L; // 60 seconds in nanoseconds, not tied to the retransmission timeout
         // Listen for incoming packets for 60 seconds
-        while (attempts < this.maxRetries) {
+        while (System.nanoTime() - lastSentTime < maxListenTime) {
             
             // Wait for the client to send a SYN packet
             try {
-                responsePacket = receivePacket(); 
+                tcpMessageRCVinit = receivePacket(); 
             } catch (Exception e) {
             }
 
             // Check if the packet is null
-            if (responsePacket == null) {
-                if (this.timeout.isTimedOut(System.nanoTime(), lastSentTime)) {
-                    lastSentTime = System.nanoTime();
-                    attempts++;
-                }
+            if (tcpMessageRCVinit == null) {
                 continue; // Retry listening
             }
             else {
@@ -306,25 +637,43 @@ public class TCPconnection {
         }
 
         // Check if the packet is null
-        if (responsePacket == null) {
+        if (tcpMessageRCVinit == null) {
             return false;
         }
 
-        // Parse the TCP data
-        TCPmessageStatus tcpMessageRCVinit = new TCPmessageStatus(responsePacket.getData());
-
         // Verify the packet is a new SYN packet
         if (tcpMessageRCVinit.verifyMessage(0, 0, 1, 0, 0) == false) {
             return false;
         }
 
+        // A striped file is written range by range, each connection at the offset of its range
+        long[] synStripe = new long[4];
+        boolean hasStripe = tcpMessageRCVinit.getStripe(synStripe);
+        if (hasStripe != (this.stripesExpected > 0) || (hasStripe && synStripe[3] != this.stripesExpected)) {
+            System.out.println(hasStripe ? "Refusing a range of a file split into " + synStripe[3] + " ranges, expected " + this.stripesExpected + "."
+                : this.stripesExpected > 0 ? "Refusing a connection without a range of the striped file." : "Refusing a range of a striped file, the whole file is expected.");
+            return false;
+        }
+        if (hasStripe) {
+            this.stripe = synStripe;
+            this.fileHandler.setWriteOffset(synStripe[0]);
+        }
+
         // Process the received packet
-        this.targetIPAddress = responsePacket.getAddress();
-        this.targetPort = responsePacket.getPort();
+        this.targetIPAddress = this.lastSourceAddress.getAddress();
+        this.targetPort = this.lastSourceAddress.getPort();
+        this.sackEnabled = this.sackBlocksMax > 0 && tcpMessageRCVinit.hasOption(TCPoptions.SACK_PERMITTED);
+
+        // Both ends use the smaller segment size, a client that sends none uses this end's
+        int clientSegmentSize = tcpMessageRCVinit.getMss();
+        if (clientSegmentSize > 0 && clientSegmentSize < this.maxUnitSize) {
+            setSegmentSize(clientSegmentSize);
+        }
 
-        // Create a new TCP message that is a SYN-ACK packet
+        // Create a new TCP message that is a SYN-ACK packet with this end's segment size, SACK permitted is only sent back if the client offered it
         TCPmessageStatus outTCP = new TCPmessageStatus(0, tcpMessageRCVinit.byteSequenceNumber + 1);
-        outTCP.setDatalessMessage(1, 0, 1, tcpMessageRCVinit.timestamp); // SYN = 1, ACK = 1, FIN = 0
+        outTCP.setDatalessMessage(1, 0, 1, tcpMessageRCVinit.timestamp,
+            TCPoptions.join(TCPoptions.mss(this.offeredSegmentSize), this.sackEnabled ? TCPoptions.sackPermitted() : null)); // SYN = 1, ACK = 1, FIN = 0
 
         // Keep attempting to send the SYN-ACK packet until it is acknowledged
         attempts = 0;
@@ -339,15 +688,17 @@ public class TCPconnection {
                 return false;
             }
             
-            // Check if there is a timeout to resend
+            // Check if there is a timeout to resend, each one doubles the timeout
             if (this.timeout.isTimedOut(System.nanoTime(), lastSentTime)) {
                 sendAndWaitForResponse(outTCP, false);
                 lastSentTime = System.nanoTime();
+                this.timeout.backOff();
                 this.retransmissions++;
                 attempts++;
             }
 
-            // Listen for a response
+            // Listen for a response until the SYN-ACK is due to be resent
+            this.receiveDeadline = this.timeout.getDeadline(lastSentTime);
             tcpMessageRCVack = sendAndWaitForResponse(null, true);
 
             // Check if the packet is null
@@ -372,114 +723,117 @@ public class TCPconnection {
 
         // Initialize the variables for controlling the while loop
         boolean connectionLost = false;
+        boolean drained;
         TCPmessageStatus inTCP = null;
-        TCPmessageStatus outTCP = null;
-        int position;
         this.finBytSeqNum = 1;
         long lastReceivedTime = System.nanoTime();
         long maxWaitTime = 30 * 1000000000L; // 30 second in nanoseconds
 
+        // Out of order segments are held across loop passes so the sender's window keeps moving
+        this.messageBufferIn = new TCPreorderBuffer(this.maxUnits, this.maxUnitSize);
+        this.finMessageIn = null;
+        this.unackedSegments = 0;
+
         // Loop until either a null or a FIN packet is received
         while (connectionLost == false) {
 
-            this.messageListIn = new ArrayList <TCPmessageStatus>();
-                
-                // Loop gathering packets sent
-                while (true) {
-                    // Wait for a packet to come in
-                    inTCP = sendAndWaitForResponse(null, true);
-                    // Exit inner loop if the packet is null
-                    if (inTCP == null) {
-                        break;
-                    } 
-                    // Drop the packet if it is for establishing a connection, update last received time
-                    lastReceivedTime = System.nanoTime();
-                    if (inTCP.verifyMessage(1, 1, 0, 0, 1) == true && inTCP.dataLength == 0) {
-                        break; // Skip to the next packet
-                    }
-                    
-                    // Check if the packet has previously been received
-                    else if (this.dataTracker.isDataReceived(inTCP.byteSequenceNumber)) {
-                        // Send an ACK packet back to the client
-                        outTCP = new TCPmessageStatus(1, inTCP.byteSequenceNumber + inTCP.dataLength);
-                        outTCP.setDatalessMessage(0, 0, 1, inTCP.timestamp); // SYN = 0, ACK = 1, FIN = 0
-                        this.sendAndWaitForResponse(outTCP, false);
-                        this.duplicateAcksGlobal++;
-                        continue; // Skip to the next packet
+            // Wait for a packet to come in, or until a held back ACK is due
+            if (this.unackedSegments > 0) {
+                this.receiveDeadline = this.unackedSince + this.ackDelayNanos;
+            }
+            inTCP = sendAndWaitForResponse(null, true);
+
+            if (inTCP != null) {
+                lastReceivedTime = System.nanoTime();
+
+                // Answer the client's path MTU probe
+                if (inTCP.dataLength == 0 && serverAnswerProbe(inTCP)) {
+                    // Nothing to store
+                }
+                // Drop the packet if it is for establishing a connection
+                else if (inTCP.verifyMessage(1, 1, 0, 0, 1) == true && inTCP.dataLength == 0) {
+                    // Nothing to store
+                }
+                // The FIN is held on its own, the connection closes once every byte before it is in
+                else if (inTCP.verifyFlags(0, 1, 0)) {
+                    if (this.finMessageIn == null) {
+                        this.finMessageIn = inTCP;
                     }
-                    // If the list is empty, add the packet
-                    else if (this.messageListIn.size() == 0) {
-                        this.messageListIn.add(inTCP);
+                }
+                // Only data segments are stored
+                else if (inTCP.verifyFlags(0, 0, 1) == false || inTCP.acknowledgmentNumber != 1 || inTCP.dataLength == 0) {
+                    // Nothing to store
+                }
+                // Check if the packet has previously been received
+                else if (this.dataTracker.isDataReceived(inTCP.byteSequenceNumber)) {
+                    // Send a duplicate ACK for the next expected byte back to the client
+                    serverSendImmediateAck(inTCP);
+                }
+                // The next expected segment is written straight away
+                else if (inTCP.byteSequenceNumber == this.dataTracker.getNextExpectedByte()) {
+                    if (serverDeliverData(inTCP) == false) {
+                        return false;
                     }
-                    // Check if there is space in message list in
-                    else if (this.messageListIn.size() < this.maxUnits) {
-                        position = 0;
-                        while (position < this.messageListIn.size()) {
-                            // Check if the packet is already in the list
-                            if (inTCP.byteSequenceNumber == this.messageListIn.get(position).byteSequenceNumber) {
-                                break; // Skip to the next message
-                            } else if (inTCP.byteSequenceNumber < this.messageListIn.get(position).byteSequenceNumber) {
-                                this.messageListIn.add(position, inTCP);
-                                break; // Exit the loop if the packet is inserted
-                            } else {
-                                position++;
-                            }
-                        }
-                        // If the packet is not inserted, add it to the end of the list
-                        if (position == this.messageListIn.size()) {
-                            this.messageListIn.add(inTCP);
-                        }
-                    } 
-                    // If the message list is full, might need to drop packets
-                    else {
-                        position = 0;
-                        while (position < this.messageListIn.size()) {
-                            // Check if the packet is already in the list
-                            if (inTCP.byteSequenceNumber == this.messageListIn.get(position).byteSequenceNumber) {
-                                break; // Skip to the next message
-                            } else if (inTCP.byteSequenceNumber < this.messageListIn.get(position).byteSequenceNumber) {
-                                this.messageListIn.remove(this.messageListIn.size() - 1); // Remove the last item
-                                this.messageListIn.add(position, inTCP);
-                                this.outOfSequencePacketsDiscarded++;
-                                break; // Exit the loop if the packet is inserted
-                            } else {
-                                position++;
-                            }
-                        }
-                        // Drop the packet
+                    // ACK every few full segments, a short segment is the end of the data so it is ACKed at once
+                    if (this.unackedSegments >= this.ackEverySegments || inTCP.dataLength < this.maxUnitSize) {
+                        serverFlushAck();
                     }
                 }
-                
-                // Check if the list in is empty
-                if (this.messageListIn.isEmpty() == true) {
-                } 
-                // Check if there is a single FIN packet
-                else if (this.messageListIn.size() == 1) {
-                    if(this.messageListIn.get(0).verifyMessage(this.dataTracker.getNextExpectedByte(), 1, 0, 1, 0) == true) {
-                    System.out.println("Received FIN packet. Initiating close.");
-                    return true;
+                // A data packet past the next expected byte means a segment is missing, hold it and tell the client right away
+                else {
+                    if (this.messageBufferIn.add(inTCP, this.dataTracker.getNextExpectedByte())) {
+                        // The message is a view over the receive buffer, keep that buffer for it
+                        holdReceiveBuffer();
+                    } else if (this.messageBufferIn.contains(inTCP.byteSequenceNumber) == false) {
+                        // Past the window, the client resends it once the window moves
+                        this.outOfSequencePacketsDiscarded++;
                     }
+                    serverSendImmediateAck(inTCP);
                 }
-                // Loop over the messages that were received
-                while (this.messageListIn.size() > 0) {
-                    // Check if the first packet has the next expected byte
-                    inTCP = this.messageListIn.get(0);
-                    if (inTCP.verifyMessage(this.dataTracker.getNextExpectedByte(), 1, 0, 0, 1) == true) {
-                        // Process the received data bytes
-                        this.dataTracker.receiverAddData(inTCP.byteSequenceNumber, inTCP.dataLength, inTCP.getMessage());
-                        // Send an ACK packet back to the client
-                        outTCP = new TCPmessageStatus(1, inTCP.byteSequenceNumber + inTCP.dataLength);
-                        outTCP.setDatalessMessage(0, 0, 1, inTCP.timestamp); // SYN = 0, ACK = 1, FIN = 0
-                        this.sendAndWaitForResponse(outTCP, false);
-                        // Remove the processed packet from the list
-                        this.messageListIn.remove(0);
-                    } else {
-                        // The first packet isn't what we want - listen for more packets
-                        break;
+            }
+
+            // Drain every held packet that is now in order
+            drained = false;
+            while ((inTCP = this.messageBufferIn.poll(this.dataTracker.getNextExpectedByte())) != null) {
+                if (serverDeliverData(inTCP) == false) {
+                    return false;
+                }
+                drained = true;
+            }
+
+            // A segment that fills all or part of a gap is ACKed at once, one ACK covering everything drained (RFC 5681)
+            // One ACK per drained segment would look like a string of partial ACKs and have the client resend segments held here
+            if (this.unackedSegments > 0 && (drained || this.messageBufferIn.isEmpty() == false)) {
+                serverFlushAck();
+            }
+
+            // Send a held back ACK that has waited long enough
+            if (this.unackedSegments > 0 && System.nanoTime() - this.unackedSince >= this.ackDelayNanos) {
+                serverFlushAck();
+            }
+
+            // Check if the next packet in line is the FIN packet
+            if (this.finMessageIn != null && this.finMessageIn.byteSequenceNumber == this.dataTracker.getNextExpectedByte()) {
+                serverFlushAck();
+                System.out.println("Received FIN packet. Initiating close.");
+                // The FIN is only answered once every byte before it is written, a write that failed after its segment was ACKed fails the connection
+                if (this.diskWriter != null) {
+                    this.diskWriter.close();
+                    if (this.diskWriter.isHealthy() == false) {
+                        System.out.println("Data already acknowledged could not be written to the file.");
+                        return false;
                     }
-                                
-                }      
-        
+                }
+                // The last of the data still sits in the file's write buffer
+                try {
+                    this.fileHandler.flush();
+                } catch (IOException e) {
+                    System.out.println("Data already acknowledged could not be written to the file: " + e.getMessage());
+                    return false;
+                }
+                return true;
+            }
+
             if (maxWaitTime < (System.nanoTime() - lastReceivedTime)) {
                 System.out.println("No packet received within the timeout period for data, closing the port and exiting.");
                 connectionLost = true;
@@ -490,6 +844,99 @@ public class TCPconnection {
         return false; // Return false to indicate connection was lost
     }
 
+    /**
+     * Answer a packet of the client's path MTU probe.
+     * A probe is echoed back if all of it arrived, a new segment size is taken up and echoed back as long as no data has come in yet.
+     * @param inTCP dataless packet
+     * @return false if the packet is not part of a probe
+     */
+    private boolean serverAnswerProbe(TCPmessageStatus inTCP) {
+        int probeSize = inTCP.getProbe();
+        int segmentSize = inTCP.getMss();
+        byte[] answer;
+        if (probeSize >= 0) {
+            if (probeSize != inTCP.getMessageLength()) {
+                return true; // Cut short on the way, left unanswered like a lost one
+            }
+            answer = TCPoptions.probe(probeSize);
+        } else if (segmentSize > 0) {
+            // The reorder buffer is laid out by segment size, the client only sends data once the new size is echoed
+            if (segmentSize < this.maxUnitSize && this.dataTracker.getNextExpectedByte() == 1 && this.messageBufferIn.isEmpty()) {
+                setSegmentSize(segmentSize);
+                this.messageBufferIn = new TCPreorderBuffer(this.maxUnits, this.maxUnitSize);
+            }
+            answer = TCPoptions.mss(this.maxUnitSize);
+        } else {
+            return false;
+        }
+        TCPmessageStatus outTCP = new TCPmessageStatus(1, this.dataTracker.getNextExpectedByte());
+        outTCP.setDatalessMessage(0, 0, 1, inTCP.timestamp, answer); // SYN = 0, FIN = 0, ACK = 1
+        sendAndWaitForResponse(outTCP, false);
+        return true;
+    }
+
+    /**
+     * Write an in order data segment, or queue it for the disk writer, its ACK is held back until serverFlushAck.
+     * @param inTCP segment that starts at the next expected byte
+     * @return false if the data could not be written, or the disk writer failed, the segment is not ACKed and the connection has to end
+     */
+    private boolean serverDeliverData(TCPmessageStatus inTCP) {
+        // Process the received data bytes
+        if (this.dataTracker.receiverAddData(inTCP.byteSequenceNumber, inTCP.dataLength, inTCP.getMessage()) == false) {
+            System.out.println("Data could not be written to the file, closing the connection.");
+            return false;
+        }
+        // The ACK echoes the timestamp of the oldest segment it covers, so the client's RTT includes the time it was held back
+        if (this.unackedSegments == 0) {
+            this.unackedSince = System.nanoTime();
+            this.unackedTimestamp = inTCP.timestamp;
+        }
+        this.unackedSegments++;
+        return true;
+    }
+
+    /**
+     * Send one ACK for every in order segment written since the last ACK.
+     */
+    private void serverFlushAck() {
+        if (this.unackedSegments == 0) {
+            return;
+        }
+        serverSendAck(this.dataTracker.getNextExpectedByte(), this.unackedTimestamp);
+        this.unackedSegments = 0;
+    }
+
+    /**
+     * ACK a segment that is not the next expected one at once.
+     * An ACK held back for in order segments goes out in its place, it names the same next expected byte,
+     * so the client gets one ACK rather than two alike and its RTT sample comes from the held segments.
+     * @param inTCP segment already received or past a gap
+     */
+    private void serverSendImmediateAck(TCPmessageStatus inTCP) {
+        if (this.unackedSegments > 0) {
+            serverFlushAck();
+        } else {
+            serverSendAck(this.dataTracker.getNextExpectedByte(), inTCP.timestamp);
+            this.duplicateAcksGlobal++;
+        }
+    }
+
+    /**
+     * Send a dataless ACK from the server to the client.
+     * @param acknowledgmentNumber next byte expected from the client
+     * @param timestamp timestamp of the packet being acknowledged, echoed back for the client's RTT estimate
+     */
+    private void serverSendAck(int acknowledgmentNumber, long timestamp) {
+        // Report the held segments past the gap so the client only resends what is missing
+        byte[] options = null;
+        if (this.sackEnabled && this.messageBufferIn.isEmpty() == false) {
+            options = TCPoptions.sack(this.sackBlocks, this.messageBufferIn.sackBlocks(this.sackBlocks, this.sackBlocksMax));
+        }
+        TCPmessageStatus outTCP = new TCPmessageStatus(1, acknowledgmentNumber);
+        outTCP.setDatalessMessage(0, 0, 1, timestamp, options); // SYN = 0, ACK = 1, FIN = 0
+        this.sendAndWaitForResponse(outTCP, false);
+    }
+
     // Close out communication for the server
     public boolean serverCloseTCPconnection() {
         // Create a new DatagramPacket to receive the data
@@ -504,7 +951,7 @@ public class TCPconnection {
 
         //  Create a new TCP message that is a FIN packet
         TCPmessageStatus outTCP = new TCPmessageStatus(1, this.dataTracker.getNextExpectedByte() +1);
-        outTCP.setDatalessMessage(0, 1, 1, this.messageListIn.get(0).timestamp); // SYN = 0, ACK = 0, FIN = 1
+        outTCP.setDatalessMessage(0, 1, 1, this.finMessageIn.timestamp); // SYN = 0, ACK = 0, FIN = 1
 
 
         // Keep attempting to send the SYN-ACK packet until it is acknowledged
@@ -517,9 +964,11 @@ public class TCPconnection {
             if (this.timeout.isTimedOut(System.nanoTime(), lastSentTime)) {
                 sendAndWaitForResponse(outTCP, false);
                 lastSentTime = System.nanoTime();
+                this.timeout.backOff();
                 attempts++;
                 this.retransmissions++;
             }
+            this.receiveDeadline = this.timeout.getDeadline(lastSentTime);
             inTCP = sendAndWaitForResponse(null, true);
             // Check if the packet is null
             if (inTCP == null) {
@@ -544,9 +993,11 @@ public class TCPconnection {
         int attempts;
         TCPmessageStatus inTCP = null;
 
-        //  Create a new TCP message that is a SYN packet
+        //  Create a new TCP message that is a SYN packet with the segment size, offering SACK unless it is turned off, and naming the range of a striped file
+        byte[] synOptions = TCPoptions.join(TCPoptions.join(TCPoptions.mss(this.offeredSegmentSize), this.sackBlocksMax > 0 ? TCPoptions.sackPermitted() : null),
+            this.stripe != null ? TCPoptions.stripe(this.stripe[0], this.stripe[1], (int) this.stripe[2], (int) this.stripe[3]) : null);
         TCPmessageStatus outTCP = new TCPmessageStatus(0, 0);
-        outTCP.setDatalessMessage(1, 0, 0, System.nanoTime()); // SYN = 1, ACK = 0, FIN = 0
+        outTCP.setDatalessMessage(1, 0, 0, System.nanoTime(), synOptions); // SYN = 1, ACK = 0, FIN = 0
 
         // Keep attempting to send the SYN-ACK packet until it is acknowledged
         attempts = 0;
@@ -557,6 +1008,7 @@ public class TCPconnection {
             if (this.timeout.isTimedOut(System.nanoTime(), outTCP.timestamp)) {
                 outTCP.resetMessage();
                 sendAndWaitForResponse(outTCP, false);
+                this.timeout.backOff();
                 this.retransmissions++;
                 attempts++;
             }
@@ -566,6 +1018,7 @@ public class TCPconnection {
                 return false;
             }
 
+            this.receiveDeadline = this.timeout.getDeadline(outTCP.timestamp);
             inTCP = sendAndWaitForResponse(null, true);
 
             // Check if the packet is null
@@ -578,8 +1031,15 @@ public class TCPconnection {
             }
         }
 
-        // Update the timeout timer
-        this.timeout.updateTimeOutZero(System.nanoTime(), inTCP.timestamp);
+        // Seed the timeout from the handshake, unless the SYN was resent and the SYN-ACK could be for either copy (Karn's rule)
+        if (attempts == 0) {
+            this.timeout.updateTimeOutZero(System.nanoTime(), inTCP.timestamp);
+        }
+        this.sackEnabled = this.sackBlocksMax > 0 && inTCP.hasOption(TCPoptions.SACK_PERMITTED);
+        int serverSegmentSize = inTCP.getMss();
+        if (serverSegmentSize > 0 && serverSegmentSize < this.maxUnitSize) {
+            setSegmentSize(serverSegmentSize);
+        }
 
         // Create a new TCP message that is an ACK packet
         TCPmessageStatus outTCP2 = new TCPmessageStatus(1, inTCP.byteSequenceNumber + 1);
@@ -594,178 +1054,345 @@ public class TCPconnection {
         return true; // Return true to indicate success
     }
 
+    /**
+     * Probe for the largest datagram that gets to the server, between the handshake and the data.
+     * Datagrams past the path MTU are fragmented on the way, or refused by a path that won't fragment, and a lost fragment loses the datagram.
+     * -- A probe is a dataless packet padded with zeros to a full segment of the size probed, the server echoes the size back.
+     * -- Each round probes a few sizes spread between the largest segment size known to get through and the smallest known to be lost.
+     *    The sizes are sent together, sent again if they aren't answered within a round trip, and count as lost if neither copy is answered.
+     * -- The top of the range is probed first, on a path that carries the negotiated segment size that one round is the whole probe.
+     * -- It stops once the largest size through and the smallest lost are close, or the largest size probed got through.
+     * A smaller segment size is sent to the server on its own and resent until it is echoed back, the server lays its reorder buffer out by it.
+     * @return false if the server never echoed the new segment size
+     */
+    public boolean clientProbePathMtu() {
+        long startTime = System.nanoTime();
+        int through = Math.min(this.maxUnitSize, PROBE_FLOOR); // Largest segment size known to get through
+        int lost = this.maxUnitSize + 1; // Smallest segment size known to be lost
+        int[] sizes = new int[PROBES_PER_ROUND];
+        boolean[] answered = new boolean[PROBES_PER_ROUND];
+        int count;
+        long sentTime;
+        TCPmessageStatus inTCP;
+        // Probes are answered at once, they wait a round trip and its variation rather than the timeout's floor that allows for delayed ACKs
+        long probeWait = this.timeout.getTimeOut();
+        if (this.timeout.getSmoothedRtt() > 0) {
+            probeWait = Math.min(this.timeout.getSmoothedRtt() + 4 * this.timeout.getRttVariation(), probeWait);
+        }
+        System.out.println("Probing the path MTU...");
+
+        for (int round = 0; through < lost - 1 && (round == 0 || lost - through > PROBE_RESOLUTION); round++) {
+            // Spread the sizes up to the top of the range
+            count = Math.min(PROBES_PER_ROUND, lost - 1 - through);
+            for (int i = 0; i < count; i++) {
+                sizes[i] = through + (int) ((long) (lost - 1 - through) * (i + 1) / count);
+                answered[i] = false;
+            }
+            // Send the unanswered sizes and collect the answers until the wait is over, the top size answered ends the round
+            for (int attempt = 0; attempt < PROBE_ATTEMPTS && answered[count - 1] == false; attempt++) {
+                for (int i = 0; i < count; i++) {
+                    if (answered[i] == false) {
+                        sendProbe(24 + sizes[i]);
+                    }
+                }
+                sentTime = System.nanoTime();
+                while (answered[count - 1] == false && System.nanoTime() - sentTime < probeWait) {
+                    this.receiveDeadline = sentTime + probeWait;
+                    inTCP = sendAndWaitForResponse(null, true);
+                    if (inTCP == null || inTCP.getProbe() < 0) {
+                        continue;
+                    }
+                    for (int i = 0; i < count; i++) {
+                        if (24 + sizes[i] == inTCP.getProbe()) {
+                            answered[i] = true;
+                        }
+                    }
+                }
+            }
+            // Narrow the range, a size lost above one that got through bounds it from above
+            for (int i = 0; i < count; i++) {
+                if (answered[i]) {
+                    through = Math.max(through, sizes[i]);
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                if (answered[i] == false && sizes[i] > through) {
+                    lost = Math.min(lost, sizes[i]);
+                }
+            }
+        }
+
+        // Tell the server the smaller segment size and wait for it to be echoed, resending with the timeout backed off like the SYN
+        if (through < this.maxUnitSize) {
+            System.out.println("Lowering the segment size to " + through + " bytes.");
+            TCPmessageStatus outTCP = new TCPmessageStatus(1, 1);
+            outTCP.setDatalessMessage(0, 0, 1, System.nanoTime(), TCPoptions.mss(through)); // SYN = 0, FIN = 0, ACK = 1
+            sendAndWaitForResponse(outTCP, false);
+            int attempts = 0;
+            while (true) {
+                if (this.timeout.isTimedOut(System.nanoTime(), outTCP.timestamp)) {
+                    if (++attempts == this.maxRetries) {
+                        return false;
+                    }
+                    outTCP.resetMessage();
+                    sendAndWaitForResponse(outTCP, false);
+                    this.timeout.backOff();
+                    this.retransmissions++;
+                }
+                this.receiveDeadline = this.timeout.getDeadline(outTCP.timestamp);
+                inTCP = sendAndWaitForResponse(null, true);
+                if (inTCP != null && inTCP.getMss() == through) {
+                    break;
+                }
+            }
+            setSegmentSize(through);
+        }
+        this.probeNanos = System.nanoTime() - startTime;
+        return true;
+    }
+
+    /**
+     * Send one probe datagram.
+     * @param datagramSize bytes in the datagram, header and padding included
+     */
+    private void sendProbe(int datagramSize) {
+        TCPmessageStatus probe = new TCPmessageStatus(1, 1);
+        probe.setDatalessMessage(0, 0, 1, System.nanoTime(), TCPoptions.probe(datagramSize)); // SYN = 0, FIN = 0, ACK = 1
+        // Pad with zeros to the size probed, zeros leave the checksum as it is
+        byte[] datagram = Arrays.copyOf(probe.getMessage(), datagramSize);
+        this.probesSent++;
+        try {
+            sendPacket(ByteBuffer.wrap(datagram), probe);
+        } catch (IOException e) {
+            // Too large for this host to send, the size counts as lost
+        }
+    }
+
     /**
      * This method is for when the client is sending data to the server.
+     * The window slides continuously, every ACK that retires a segment releases the next segment from the data tracker.
      */
     public boolean clientSendData() {
         // Initialize the variables for controlling the while loop
-        int attempts;
-        int count;
-        TCPmessageStatus tcpMessageData = new TCPmessageStatus(0, 0);
-        TCPmessageStatus tcpMessageRCVack = new TCPmessageStatus(0, 0);
+        TCPmessageStatus tcpMessageData = null;
+        TCPmessageStatus tcpMessageRCVack = null;
         TCPmessageStatus activeMessage = null;
-        byte[] data = null;
-        int currentWindow = 1;
+        int dataLength;
+        int currentWindow;
         int currentByteSqnNumber = 1;
-        boolean finalRound = false;
-        int activeMessagesAcked;
+        boolean dataExhausted = false;
         boolean resendOccurred = false;
         int duplicateAckCount = 0;
-        boolean noFailures = true;
-        
+        int highestAckNumber = 1;
+        int recoverByteSqnNumber = 1; // Duplicate ACKs only start a new fast recovery once this byte is acknowledged
+        boolean inFastRecovery = false;
+        int recoveryInflation = 0; // Segments the duplicate ACKs of a fast recovery without SACK add to the controller's window
+        boolean inTimeoutRecovery = false; // After a timeout, partial ACKs resend the next hole rather than leaving it to its own backed off timeout
+        long recoveryStartTime = 0; // Holes last sent before this are resent once in the current fast recovery or timeout recovery
+        int retired;
+        int blocks;
+        long now;
+        long releaseTime; // nanoTime the pacer lets the next new segment go, 0 if it is not holding one back
+        long pacingRate;
+
+        // Segments that have been sent but not yet acknowledged, oldest first, each with a timer on a wheel of 1 millisecond ticks
+        this.retransmitTimers = new TCPtimerWheel(1000000L, 1024);
+        this.messageWindowOut = new TCPsendWindow(this.maxUnits, this.fileHandler.getMaxChunkSize(), this.retransmitTimers);
+        if (this.pacingBurst > 0) {
+            this.pacer = new TCPpacer(this.pacingBurst, this.fileHandler.getMaxChunkSize());
+        }
 
-        // Loop until either a null or a FIN packet is received
-        while (finalRound == false) {
-
-            attempts = 0;
-            count = 0;
-            activeMessagesAcked = 0;
-
-            // Build list of messages to be sent in a wave
-            this.messageListOut = new ArrayList <TCPmessageStatus>();
-            while (count < currentWindow) {
-                // Create a new TCP message that is a data packet
-                tcpMessageData = new TCPmessageStatus(0, 0);
-                data = this.dataTracker.senderRetrieveData();
-                // Check if the data is null, if so move to close connection
-                if (data == null) {
-                    finalRound = true;
-                    this.finBytSeqNum = currentByteSqnNumber;
-                    break; // Exit the loop if the ACK data packet is received successfully
+        // Loop until all data is sent and acknowledged
+        while (true) {
+
+            // The congestion controller sets the window, fast recovery without SACK inflates it by the segments known to have left the network
+            currentWindow = Math.max(this.congestionControl.getWindow() + recoveryInflation, 1);
+
+            // Pace at the controller's rate, or a window per smoothed round trip time
+            releaseTime = 0;
+            if (this.pacer != null) {
+                pacingRate = this.congestionControl.getPacingRate();
+                if (pacingRate == 0 && this.timeout.getSmoothedRtt() > 0) {
+                    pacingRate = (long) (currentWindow * (double) this.fileHandler.getMaxChunkSize() * 1e9 / this.timeout.getSmoothedRtt());
+                }
+                this.pacer.setRate(pacingRate, System.nanoTime());
+            }
+
+            // Fill the window with new segments, with SACK the segments the receiver holds have left the network and don't count (RFC 6675 pipe)
+            while (dataExhausted == false && this.messageWindowOut.isFull() == false
+                    && this.messageWindowOut.size() - (this.sackEnabled ? this.messageWindowOut.selectivelyAcknowledged() : 0) < currentWindow) {
+                // Hold the segment back until the pacer releases it, the receive below wakes up for it
+                if (this.pacer != null) {
+                    now = System.nanoTime();
+                    releaseTime = this.pacer.getReleaseTime(this.fileHandler.getMaxChunkSize(), now);
+                    if (releaseTime - now > 0) {
+                        break;
+                    }
+                    releaseTime = 0;
                 }
-                tcpMessageData.setDataMessage(currentByteSqnNumber, 1, data);
-                // Set the timestamp for the message
-                tcpMessageData.resetMessage();
+                // Reuse the message and packet buffer of the segment retired from the slot a window ago
+                tcpMessageData = this.messageWindowOut.recycle();
+                dataLength = this.dataTracker.senderRetrieveData(tcpMessageData.getPacketBuffer(this.fileHandler.getMaxChunkSize()), 24);
+                // Check if there is no data, if so no more segments will be released
+                if (dataLength < 0) {
+                    dataExhausted = true;
+                    break;
+                }
+                // The read-ahead hasn't got the next chunk yet, see to the ACKs and timers and ask again shortly
+                if (dataLength == 0) {
+                    releaseTime = System.nanoTime() + PREFETCH_RETRY_NANOS;
+                    break;
+                }
+                // Encode the header in front of the data, this also sets the timestamp
+                tcpMessageData.setDataMessage(currentByteSqnNumber, 1, dataLength);
                 // send the packet and store it
                 sendAndWaitForResponse(tcpMessageData, false);
-                this.messageListOut.add(tcpMessageData);
-                count++;
-                currentByteSqnNumber += data.length;
+                this.messageWindowOut.add(tcpMessageData);
+                this.retransmitTimers.schedule(tcpMessageData, this.timeout.getDeadline(tcpMessageData.timestamp));
+                currentByteSqnNumber += dataLength;
             }
 
-            duplicateAckCount = 0;
-
-            while (true) {
-            
-
-                // While loop waiting for ACK
-                while (true) {
-                    // Check if messages should be resent
-                    count = 0;
-                    while (count < this.messageListOut.size()) {
-                        activeMessage = this.messageListOut.get(count);                        
-                        if (this.timeout.isTimedOut(System.nanoTime(), activeMessage.timestamp)) {
-                            resendOccurred = true;
-                            // Check if the message has been sent more than max attempts times
-                            if (activeMessage.sendAttempts >= this.maxRetries) {
-                                System.out.println("Message has been resent too many times, connection lost.");
-                                this.messageListOut.remove(count);
-                                return false; // Return false to indicate connection was lost
-                            }
-                            activeMessage.sendAttempts++;
-                            activeMessage.resetMessage();
-                            // Replace the message in the list
-                            this.messageListOut.set(count, activeMessage);
-                            // Resend the message
-                            sendAndWaitForResponse(activeMessage, false);
-                            this.retransmissions++;
-                        }
-                        count++;
-                    }
+            // Everything has been sent and acknowledged, move to close connection
+            if (dataExhausted == true && this.messageWindowOut.isEmpty()) {
+                this.finBytSeqNum = currentByteSqnNumber;
+                return true;
+            }
 
+            // Resend the segments whose timers ran out, the wheel only hands back those, a segment in a SACK block has no timer left
+            while ((activeMessage = this.retransmitTimers.expire(System.nanoTime())) != null) {
+                if (resendOccurred == false) {
+                    // Segments sent before the first resend of the round are the ones a partial ACK may still uncover as lost
+                    recoveryStartTime = System.nanoTime();
+                    // Double the timeout once for the round, before the resent segments' timers start
+                    this.timeout.backOff();
+                }
+                resendOccurred = true;
+                // Check if the message has been sent more than max attempts times
+                if (activeMessage.sendAttempts >= this.maxRetries) {
+                    System.out.println("Message has been resent too many times, connection lost.");
+                    return false; // Return false to indicate connection was lost
+                }
+                // Resend the message
+                resendMessage(activeMessage);
+            }
+            // Wake up for the next timer
+            this.receiveDeadline = this.retransmitTimers.nextDeadline();
+            if (releaseTime != 0 && (this.receiveDeadline == 0 || releaseTime - this.receiveDeadline < 0)) {
+                this.receiveDeadline = releaseTime;
+            }
 
-                    
-                    // Wait for a packet to come in
-                    tcpMessageRCVack = sendAndWaitForResponse(null, true);
+            // Wait for a packet to come in, or until the earliest segment is due to be resent or the pacer releases the next one
+            tcpMessageRCVack = sendAndWaitForResponse(null, true);
 
-                    // If the packet is null, break out of the inner loop
-                    if (tcpMessageRCVack == null) {
-                        break;
-                    } 
+            // If the packet is null, go back around to check the timers, the checksum was already validated on receipt
+            // A late answer to the path MTU probe carries its option and is not an ACK of data
+            if (tcpMessageRCVack != null && tcpMessageRCVack.byteSequenceNumber == 1 && tcpMessageRCVack.verifyFlags(0, 0, 1)
+                    && (this.probePathMtu == false || (tcpMessageRCVack.getProbe() < 0 && tcpMessageRCVack.getMss() < 0))) {
 
-                    // Update the timeout timer based on the message
-                    this.timeout.updateTimeOut(System.nanoTime(), tcpMessageRCVack.timestamp);
-                    
-                    
+                // The congestion controller gets every round trip time the ACKs echo, the timeout only the ones of new cumulative ACKs below
+                this.congestionControl.onRtt(System.nanoTime() - tcpMessageRCVack.timestamp, System.nanoTime());
 
-                    // See if previously acked
-                    if (this.dataTracker.isDataAcked(tcpMessageRCVack.acknowledgmentNumber)) {
-                        duplicateAckCount++;
-                        this.duplicateAcksGlobal++;
-                        continue; // Skip to the next packet
+                // Flag the segments the receiver holds past the gap, before the next receive reuses the buffer
+                if (this.sackEnabled) {
+                    blocks = tcpMessageRCVack.getSackBlocks(this.sackBlocks);
+                    for (int block = 0; block < blocks; block++) {
+                        this.messageWindowOut.markSelectivelyAcknowledged(this.sackBlocks[2 * block], this.sackBlocks[2 * block + 1]);
                     }
-                    else {
-                        // See if it matches one of the messages we sent
-                        count = 0;
-                        while (count < this.messageListOut.size()) {
-                            activeMessage = this.messageListOut.get(count);
-
-                            if (tcpMessageRCVack.verifyMessage( 1, activeMessage.byteSequenceNumber + activeMessage.dataLength, 0, 0, 1) == true) {
-                                this.messageListOut.remove(count);
-                                this.dataTracker.addAckedData(tcpMessageRCVack.acknowledgmentNumber);
-                                break;
-                            } 
-                            count++;
-                        }
-                    }
-
-
+                }
 
-                    if (0 == this.messageListOut.size()) {
-                        duplicateAckCount = 0;
-                        break; // Exit the loop if all messages are acknowledged
-                    }
-                    // Resend all unacknowledged messages if duplicate ACKs are received
-                    else {
-                        if (duplicateAckCount >= 3) {
-                            resendOccurred = true;
-                            // Resend all active messages
-                            count = 0;
-                            while (count < this.messageListOut.size()) {
-                                activeMessage = this.messageListOut.get(count);
-                                activeMessage.sendAttempts++;
-                                activeMessage.resetMessage();
-                                // Resend the message
-                                sendAndWaitForResponse(activeMessage, false);
-                                this.retransmissions++;
-                                // Replace the message in the list
-                                this.messageListOut.set(count, activeMessage);
-                                count++;
+                // See if previously acked, only a repeat of the highest ACK means the receiver is missing a segment
+                if (this.dataTracker.isDataAcked(tcpMessageRCVack.acknowledgmentNumber)) {
+                    this.duplicateAcksGlobal++;
+                    // The echoed timestamp must be newer than the missing segment, otherwise the ACK was triggered by a late copy of an older resend
+                    activeMessage = this.messageWindowOut.findBySequence(highestAckNumber);
+                    if (tcpMessageRCVack.acknowledgmentNumber == highestAckNumber && activeMessage != null && tcpMessageRCVack.timestamp - activeMessage.timestamp > 0) {
+                        duplicateAckCount++;
+                        if ((inFastRecovery || inTimeoutRecovery) && this.sackEnabled) {
+                            // The segment this ACK reports has left the network, the room it made goes to the next hole before new data
+                            activeMessage = this.messageWindowOut.findLost(3, recoveryStartTime);
+                            if (activeMessage != null) {
+                                resendMessage(activeMessage);
+                                this.fastRetransmissions++;
                             }
-                            duplicateAckCount = 0;
+                        } else if (inFastRecovery) {
+                            // Inflate the window, every duplicate ACK means another segment has left the network
+                            recoveryInflation++;
+                        } else if (duplicateAckCount == 3 && TCPsequence.lessOrEqual(recoverByteSqnNumber, highestAckNumber)) {
+                            // Fast retransmit only the segment that starts at the duplicated ACK number
+                            this.congestionControl.onLoss(false, this.messageWindowOut.size(), System.nanoTime());
+                            // Without SACK the window is inflated by the 3 segments the duplicate ACKs say have left, SACK counts them itself
+                            recoveryInflation = this.sackEnabled ? 0 : 3;
+                            recoverByteSqnNumber = currentByteSqnNumber;
+                            recoveryStartTime = System.nanoTime();
+                            inFastRecovery = true;
+                            resendMessage(activeMessage);
+                            this.fastRetransmissions++;
                         }
                     }
                 }
-
-                // Check if active messages acknowledged is equal to the number of messages sent
-                if (0 == this.messageListOut.size()) {
-                    // If the first attempt, then increase the window size
-                    if (resendOccurred == false) {
-                        if (noFailures) {
-                            currentWindow = Math.min(currentWindow *2, this.maxUnits);
+                // A new cumulative ACK retires every segment ending at or below it
+                else {
+                    retired = this.messageWindowOut.removeAcknowledged(tcpMessageRCVack.acknowledgmentNumber);
+                    // The ACK echoes the timestamp of the copy that reached the receiver, so an ACK for a resent segment is a sample too (RFC 7323)
+                    // Leaving those out (Karn's rule) keeps the timeout backed off through a lossy stretch until it outlasts the receiver's patience
+                    this.timeout.updateTimeOut(System.nanoTime(), tcpMessageRCVack.timestamp);
+                    this.dataTracker.addAckedData(tcpMessageRCVack.acknowledgmentNumber);
+                    highestAckNumber = tcpMessageRCVack.acknowledgmentNumber;
+                    duplicateAckCount = 0;
+                    this.congestionControl.onAck(retired, inFastRecovery, System.nanoTime());
+                    if (inFastRecovery) {
+                        if (TCPsequence.lessOrEqual(recoverByteSqnNumber, highestAckNumber)) {
+                            // Everything outstanding at the loss is acknowledged, deflate the window
+                            recoveryInflation = 0;
+                            inFastRecovery = false;
+                        } else {
+                            // Partial ACK, the next missing segment is resent right away unless SACK already had it resent
+                            if (this.sackEnabled == false) {
+                                recoveryInflation -= retired - 1;
+                            }
+                            activeMessage = this.messageWindowOut.findBySequence(highestAckNumber);
+                            if (activeMessage != null && (this.sackEnabled == false || activeMessage.timestamp - recoveryStartTime < 0)) {
+                                resendMessage(activeMessage);
+                                this.fastRetransmissions++;
+                            }
+                        }
+                    } else if (inTimeoutRecovery) {
+                        if (TCPsequence.lessOrEqual(recoverByteSqnNumber, highestAckNumber)) {
+                            inTimeoutRecovery = false;
                         } else {
-                            currentWindow = Math.min(currentWindow +1, this.maxUnits);
+                            // Partial ACK after a timeout, the next hole was lost with the rest of the window unless it went out after the timeout
+                            activeMessage = this.messageWindowOut.findBySequence(highestAckNumber);
+                            if (activeMessage != null && activeMessage.isAcknowledged() == false && activeMessage.timestamp - recoveryStartTime < 0) {
+                                resendMessage(activeMessage);
+                            }
                         }
-                        
-                    } else {
-                        currentWindow = Math.min(currentWindow /2, this.maxUnits);
-                        currentWindow = Math.max(currentWindow, 1);
-                        noFailures = false;
                     }
-                    resendOccurred = false;
-                    // All messages have been acknowledged, break out of the loop
-                    break;
                 }
-
             }
 
+            // Tell the congestion controller once for each round of timeout resends
+            if (resendOccurred == true) {
+                this.congestionControl.onLoss(true, this.messageWindowOut.size(), System.nanoTime());
+                inFastRecovery = false;
+                recoveryInflation = 0;
+                // Duplicate ACKs caused by the resent segments must not start a fast retransmit
+                recoverByteSqnNumber = currentByteSqnNumber;
+                inTimeoutRecovery = true;
+                resendOccurred = false;
             }
-
-        if (finalRound == true) {
-            return true; // Return true to indicate success
         }
+    }
 
-        return false; // Return false to indicate connection was lost
+    /**
+     * Resend a message that is still in the send window and restart its timer.
+     * @param message
+     */
+    private void resendMessage(TCPmessageStatus message) {
+        message.sendAttempts++;
+        message.resetMessage();
+        sendAndWaitForResponse(message, false);
+        this.retransmitTimers.schedule(message, this.timeout.getDeadline(message.timestamp));
+        this.retransmissions++;
     }
 
     /**
@@ -780,16 +1407,20 @@ public class TCPconnection {
         TCPmessageStatus outTCP = new TCPmessageStatus(this.finBytSeqNum, 1);
         outTCP.setDatalessMessage(0, 1, 0, System.nanoTime()); // SYN = 0, ACK = 0, FIN = 1
 
+        // Send the FIN right away rather than a timeout after the last ACK
+        sendAndWaitForResponse(outTCP, false);
         while (attempts < this.maxRetries) {
             
             if (this.timeout.isTimedOut(System.nanoTime(), outTCP.timestamp)) {
                 outTCP.resetMessage();
                 sendAndWaitForResponse(outTCP, false);
+                this.timeout.backOff();
                 this.retransmissions++;
                 attempts++;
             }
 
-            // Listen for a response
+            // Listen for a response until the FIN is due to be resent
+            this.receiveDeadline = this.timeout.getDeadline(outTCP.timestamp);
             inTCP = sendAndWaitForResponse(null, true); 
 
             // Check if the packet is null
@@ -834,45 +1465,41 @@ public class TCPconnection {
     // }
 
     /**
-     * This method will create a packet for sending data.
+     * This method will set up the packet for sending data, the buffer is only rebuilt when the message buffer changes.
      * @param data
-     * @param offset
      * @param length
      */
-    private DatagramPacket createPacket(byte[] data) {
+    private ByteBuffer createPacket(byte[] data, int length) {
         
-        
-        
-        // Create a new DatagramPacket with the specified data and address
-        try {
-            DatagramPacket packet = new DatagramPacket(data, 0, data.length, this.targetIPAddress, this.targetPort);
-
-            return packet;
-        } catch (Exception e) {
-            System.out.println("Error creating packet: " + e.getMessage());
-            return null;
+        // Point the reused buffer at the data
+        if (this.outBuffer == null || this.outBuffer.array() != data) {
+            this.outBuffer = ByteBuffer.wrap(data);
         }
-        
+        this.outBuffer.limit(length).position(0);
+        return this.outBuffer;
     }
 
 
     /******************************** This is the code that will handle sending of packets and creating sockets. *******************************************/
     /**
-     * This method will create a socket for sending data.
+     * This method will create a non blocking channel for sending data and a selector to wait on it.
      * @param port if 0 will assign random port, otherwise attempt with assigned value
-     * @return
+     * @return false if the channel could not be opened
      */
-    private DatagramSocket createSocket(int port) {
+    private boolean createChannel(int port) {
         try {
             
-            DatagramSocket socket = new DatagramSocket(port);
-
-            // Create the socket with the specified port
-            return socket;
+            // Create the channel with the specified port
+            this.channel = DatagramChannel.open();
+            this.channel.bind(new InetSocketAddress(port));
+            this.channel.configureBlocking(false);
+            this.selector = Selector.open();
+            this.channel.register(this.selector, SelectionKey.OP_READ);
+            return true;
 
         } catch (Exception e) {
             System.out.println("Error creating socket: " + e.getMessage());
-            return null;
+            return false;
         }
     }
     
@@ -887,20 +1514,15 @@ public class TCPconnection {
     private TCPmessageStatus sendAndWaitForResponse(TCPmessageStatus tcpMessage, boolean waitForResponse) { // Add triplicate packet option for parameter
         
         // Initialize
-        DatagramPacket outPacket = null;
+        ByteBuffer outPacket = null;
 
-        // Create a new DatagramPacket to send the data if not void
+        // Point the send buffer at the data if not void
         if (tcpMessage != null) {
 
             byte[] data = tcpMessage.getMessage();
-            outPacket = createPacket(data);
+            outPacket = createPacket(data, tcpMessage.getMessageLength());
         } 
 
-        // Create a new DatagramPacket to receive the data
-        byte[] buffer = new byte[this.maxBytes];
-        DatagramPacket responsePacket = null;
-
-
         // This is where we do triplicate packet if needed
         // Send a packet using the socket if there is one
         if (outPacket != null) {
@@ -916,32 +1538,14 @@ public class TCPconnection {
             return null; // No need to wait for a response
         }
         
-        // Wait for the client to send a response packet
+        // Wait for the client to send a response packet, it is parsed and validated on receipt
         try {
-            responsePacket = receivePacket(); 
+            return receivePacket(); 
         } catch (IOException e) {
             return null;
         } catch (Exception e) {
             return null;
         }
-
-        // Check if the packet is null
-        if (responsePacket == null) {
-            return null;
-        }
-
-        // Parse the TCP data
-        TCPmessageStatus tcpMessageRCV = new TCPmessageStatus(responsePacket.getData());
-
-
-        // Print the received message details
-        if (tcpMessageRCV == null) {
-            return null;
-        }
-        
-
-        // Return the received packet
-        return tcpMessageRCV;
     }
 
     /**
@@ -950,51 +1554,125 @@ public class TCPconnection {
      * @param tcpMessage
      * @throws IOException
      */
-    private void sendPacket(DatagramPacket packet, TCPmessageStatus tcpMessage) throws IOException {
+    private void sendPacket(ByteBuffer packet, TCPmessageStatus tcpMessage) throws IOException {
             
-        // Send the packet using the socket
-        this.socket.send(packet);
+        // Send the packet using the channel, a full send buffer is waited out like a blocking socket would
+        InetSocketAddress target = getTargetSocketAddress();
+        while (this.channel.send(packet, target) == 0) {
+            LockSupport.parkNanos(10000L);
+        }
 
         // Log the sent packet
         tcpMessage.sent = true;
         this.packetsSent++;
-        tcpMessage.printMessageDetails(System.nanoTime() - this.timeout.getStartTime());
+        this.eventLog.record(true, tcpMessage, System.nanoTime() - this.timeout.getStartTime());
+        if (this.pacer != null) {
+            this.pacer.onSend(tcpMessage.dataLength, System.nanoTime());
+        }
+    }
+
+    // The socket address is only rebuilt when the target changes
+    private InetSocketAddress getTargetSocketAddress() {
+        if (this.targetSocketAddress == null || this.targetSocketAddress.getPort() != this.targetPort
+                || this.targetSocketAddress.getAddress() != this.targetIPAddress) {
+            this.targetSocketAddress = new InetSocketAddress(this.targetIPAddress, this.targetPort);
+        }
+        return this.targetSocketAddress;
     }
 
     /**
-     * This method will listen for incoming packets on the socket.
-     * @param packet
-     * @param waitTime in nanoseconds
-     * @return
+     * This method will listen for incoming packets on the channel.
+     * It waits until a packet arrives, the receive deadline passes or receiveWaitNanos is up, whichever is first.
+     * Waits of a millisecond or more go through the selector, the last part of a wait is parked so timers fire to well under a millisecond.
+     * The deadline is only used for this receive, a caller with a timer running sets it again before every receive.
+     * The packet is parsed and its checksum validated once, the message is a view over the receive buffer.
+     * The buffer is reused by the next receive unless holdReceiveBuffer is called.
+     * A connection attached to a TCPserver takes its packets from the server's queue instead of the channel.
+     * @return the received message, or null if it was corrupted or nothing arrived in time
      * @throws IOException
      */
-    private DatagramPacket receivePacket() throws IOException {
-        
-        // Create datagram packet to receive data
-        byte[] buffer = new byte[this.maxBytes];
-        DatagramPacket packet = new DatagramPacket(buffer, this.maxBytes);
+    private TCPmessageStatus receivePacket() throws IOException {
 
-        // Receive the packet using the socket
-        this.socket.receive(packet);
+        // Work out how long to wait
+        long now = System.nanoTime();
+        long waitUntil = now + this.receiveWaitNanos;
+        if (this.receiveDeadline != 0 && this.receiveDeadline - waitUntil < 0) {
+            waitUntil = this.receiveDeadline;
+        }
+        this.receiveDeadline = 0;
+
+        byte[] packet;
+        int length;
+        if (this.inbound != null) {
+            // Take the next datagram the server demultiplexed to this connection, each is its own array so there is no buffer to reuse
+            try {
+                packet = this.inbound.poll(Math.max(waitUntil - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            if (packet == null) {
+                return null; // A timer is due, or nothing came in
+            }
+            length = packet.length;
+        } else {
+            // Point the reused view at the receive buffer
+            if (this.receiveBuffer == null) {
+                this.receiveBuffer = new byte[this.maxBytes];
+                this.receiveView = ByteBuffer.wrap(this.receiveBuffer);
+            }
+            this.receiveView.clear();
+
+            // Receive the packet using the channel, waiting for it if there isn't one yet
+            InetSocketAddress source = (InetSocketAddress) this.channel.receive(this.receiveView);
+            while (source == null) {
+                long remaining = waitUntil - System.nanoTime();
+                if (remaining <= 0) {
+                    return null; // A timer is due, or nothing came in
+                }
+                if (remaining >= 1000000L) {
+                    this.selector.select(remaining / 1000000L);
+                } else {
+                    LockSupport.parkNanos(remaining);
+                }
+                this.selector.selectedKeys().clear();
+                source = (InetSocketAddress) this.channel.receive(this.receiveView);
+            }
+            this.lastSourceAddress = source;
+            packet = this.receiveBuffer;
+            length = this.receiveView.position();
+        }
 
         // Increment counter
         this.packetsReceived++;
         
-        // Convert to TCPmessageStatus to print received message details
-        TCPmessageStatus tcpMessage = new TCPmessageStatus(packet.getData());
-        // Print the received message details
-        tcpMessage.printMessageDetails(System.nanoTime() - this.timeout.getStartTime());
-        tcpMessage.received = true;
+        // Parse the packet once
+        TCPmessageStatus tcpMessage;
+        try {
+            tcpMessage = new TCPmessageStatus(packet, length);
+        } catch (IllegalArgumentException e) {
+            this.badChecksumPacketsDiscarded++;
+            return null; // Too short to be a packet, drop it
+        }
+        // Log the received message details
+        this.eventLog.record(false, tcpMessage, System.nanoTime() - this.timeout.getStartTime());
 
         // Check if the checksum is valid
-        if (tcpMessage.message.validateChecksum() == false) {
+        if (tcpMessage.message.checksumValid == false) {
             this.badChecksumPacketsDiscarded++;
             return null; // Checksum error, drop the packet
         }
         
-        // Return the packet
-        return packet;
+        // Return the message
+        return tcpMessage;
     }
 
-    
+    /**
+     * Keep the buffer of the last received message, for a message that is stored past the next receive.
+     */
+    private void holdReceiveBuffer() {
+        this.receiveBuffer = null;
+    }
+
+
 }
\ No newline at end of file
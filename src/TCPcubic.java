@@ -0,0 +1,102 @@
+/**
+ * CUBIC congestion control (RFC 9438).
+ * After a loss the window grows along a cubic curve in time since the loss rather than by one segment per round trip:
+ * -- W(t) = C * (t - K)^3 + Wmax, where Wmax is the window at the loss and K is the time the curve takes to get back to it.
+ * -- The curve is steep right after the loss, flat around Wmax, then probes upward faster and faster.
+ * -- The window never grows slower than Reno would on the same path (the Reno friendly region).
+ * Slow start is the same as Reno's, a loss multiplies the window by 0.7 instead of halving it.
+ */
+public class TCPcubic implements TCPcongestionControl {
+
+    private static final double C = 0.4; // Scaling of the curve, segments per second cubed
+    private static final double BETA = 0.7; // Window kept on a loss
+
+    private int maxWindow;
+    private double window; // Segments that may be in flight, fractional so growth of less than a segment per ACK adds up
+    private double slowStartThreshold; // Slow start runs while the window is below this
+    private double windowAtLoss; // Wmax, window when the last loss was found
+    private double lastWindowAtLoss; // Wmax before that, for fast convergence
+    private double renoWindow; // Window Reno would have, the window never falls behind it
+    private long epochStart; // nanoTime the current curve started, 0 until the first ACK after a loss
+    private double timeToOrigin; // K, seconds from the epoch start until the curve is back at Wmax
+    private long minRtt; // Smallest round trip time seen, in nanoseconds
+
+    public TCPcubic(int maxWindow) {
+        this.maxWindow = maxWindow;
+        this.window = 1;
+        this.slowStartThreshold = maxWindow;
+        this.windowAtLoss = 0;
+        this.lastWindowAtLoss = 0;
+        this.epochStart = 0;
+        this.minRtt = 0;
+    }
+
+    public void onAck(int segmentsAcked, boolean inRecovery, long now) {
+        if (inRecovery) {
+            return;
+        }
+        if (this.window < this.slowStartThreshold) {
+            this.window = Math.min(this.window + segmentsAcked, this.maxWindow);
+            return;
+        }
+
+        // Start a new curve on the first ACK in congestion avoidance
+        if (this.epochStart == 0) {
+            this.epochStart = now;
+            if (this.window < this.windowAtLoss) {
+                this.timeToOrigin = Math.cbrt((this.windowAtLoss - this.window) / C);
+            } else {
+                // Past Wmax already (or no loss yet), probe up from here
+                this.timeToOrigin = 0;
+                this.windowAtLoss = this.window;
+            }
+            this.renoWindow = this.window;
+        }
+
+        // Where the curve is one round trip from now
+        double t = (now - this.epochStart + this.minRtt) / 1e9;
+        double target = C * Math.pow(t - this.timeToOrigin, 3) + this.windowAtLoss;
+        target = Math.min(target, 1.5 * this.window);
+
+        // Reno friendly region, the window grows like Reno with the same average throughput (RFC 9438, 4.3)
+        this.renoWindow += 3 * (1 - BETA) / (1 + BETA) * segmentsAcked / this.window;
+        target = Math.max(target, this.renoWindow);
+
+        if (target > this.window) {
+            // Close the gap to the target over one window of ACKs
+            this.window += (target - this.window) * segmentsAcked / this.window;
+        }
+        this.window = Math.min(this.window, this.maxWindow);
+    }
+
+    public void onLoss(boolean timeout, int segmentsInFlight, long now) {
+        // Fast convergence, a flow whose Wmax keeps dropping gives up bandwidth to newer flows sooner
+        if (this.window < this.lastWindowAtLoss) {
+            this.windowAtLoss = this.window * (1 + BETA) / 2;
+        } else {
+            this.windowAtLoss = this.window;
+        }
+        this.lastWindowAtLoss = this.window;
+        this.slowStartThreshold = Math.max(this.window * BETA, 2);
+        this.window = timeout ? 1 : this.slowStartThreshold;
+        this.epochStart = 0;
+    }
+
+    public void onRtt(long rttNanos, long now) {
+        if (rttNanos > 0 && (this.minRtt == 0 || rttNanos < this.minRtt)) {
+            this.minRtt = rttNanos;
+        }
+    }
+
+    public int getWindow() {
+        return Math.max((int) this.window, 1);
+    }
+
+    public long getPacingRate() {
+        return 0;
+    }
+
+    public String getName() {
+        return "cubic";
+    }
+}
@@ -1,23 +1,16 @@
 /**
  * This class will track the data received successfully over TCP.
- * There will be an attribute list tracking start point and end point of each message that will be ordered.
- * -- Each item in the list will be a pair of integers.
- * -- The first integer will be the start point of the message.
- * -- The second integer will be the end point of the message.
- * -- The list will be ordered by the start point of each message.
- * There will be an attribute to track the highest acknowledged number that can be sent.
- * There will be method that takes a message and indicates if it can be acknowledged.
- * Will keep track of received data, anything that has been stored off fully will be discarded.
+ * Data is only ever written and acknowledged in order, so each side tracks it with a single watermark instead of a list per segment.
+ * -- The receiver's watermark is the next byte it expects, every byte below it has been written to the file.
+ * -- The sender's watermark is the highest cumulative ACK, every byte below it has been received.
+ * Segments the receiver holds ahead of its watermark are tracked by the slots of TCPreorderBuffer.
+ * Lookups are constant time and the memory used does not grow with the size of the file.
  */
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 
 public class TCPdataTracker {
     // Attributes for sender or reciever
-    // List of bytes
-    private ArrayList<byte[]> dataManaged;
-    private ArrayList<Integer> startPoints;
-    private ArrayList<Integer> completedData;
     private TCPfileHandling fileHandler;
     private int expectedChunkSize;
 
@@ -27,11 +20,13 @@ public class TCPdataTracker {
     private int lastByteSent;
     private int maxSendBuffer;
     private int currentChunkSize;
+    private TCPprefetcher prefetcher; // Reads the file ahead on its own thread, null reads it in the send loop
 
     // Attributes for the receiver
     private int lastByteRead;
     private int lastByteRcvd;
     private int maxRcvBuffer;
+    private TCPdiskWriter diskWriter; // Writes the file on its own thread, null writes it in the receive loop
 
 
     // For sender and receiver
@@ -39,11 +34,10 @@ public class TCPdataTracker {
         // Initialize the data tracker
         this.fileHandler = fileHandler;
         this.expectedChunkSize = chunkSize;
-        this.completedData = new ArrayList<>();
 
         if (isSender) {
             // Initialize sender attributes
-            this.lastByteAcked = 0;
+            this.lastByteAcked = 1; // Next byte the receiver expects, data starts at byte 1
             this.lastByteWritten = 0;
             this.lastByteSent = 0;
             this.maxSendBuffer = maxBuffer;
@@ -53,22 +47,30 @@ public class TCPdataTracker {
             this.lastByteRead = 0;
             this.lastByteRcvd = 1;
             this.maxRcvBuffer = maxBuffer;
-            this.startPoints = new ArrayList<>();
         }        
     }
 
-    // For receiver, returns true if the packet can be acknowledged
+    // For receiver, hand the data to a disk writer instead of writing it to the file
+    public void setDiskWriter(TCPdiskWriter diskWriter) {
+        this.diskWriter = diskWriter;
+    }
+
+    // For receiver, data must start at the next expected byte, returns true if the packet can be acknowledged
+    // With a disk writer the data is queued to be written, not yet on disk
     public boolean receiverAddData(int start, int length, byte[] data) {
         
-        // Store start point
-        this.startPoints.add(start);   
-
-        // Add the data using the file handler
-        try {
-            fileHandler.writeByteArrayToFile(data, length);
-        } catch (Exception e) {
-            System.out.println("Error writing data to file: " + e.getMessage());
-            return false;
+        // Add the data using the disk writer or the file handler
+        if (this.diskWriter != null) {
+            if (this.diskWriter.put(data, length) == false) {
+                return false;
+            }
+        } else {
+            try {
+                fileHandler.writeByteArrayToFile(data, length);
+            } catch (Exception e) {
+                System.out.println("Error writing data to file: " + e.getMessage());
+                return false;
+            }
         }
         // Update the last byte received
         this.lastByteRcvd += length;
@@ -77,15 +79,9 @@ public class TCPdataTracker {
         return true;
     }
 
-    // Check if the data has been received already
+    // Check if the data has been received already, everything before the next expected byte has been written
     public boolean isDataReceived(int startPoint) {
-        // Check if the start point is already in the list
-        for (int i = 0; i < this.startPoints.size(); i++) {
-            if (this.startPoints.get(i) == startPoint) {
-                return true;
-            }
-        }
-        return false;
+        return TCPsequence.lessThan(startPoint, this.lastByteRcvd);
     }
 
     // Next expected byte to be received
@@ -115,6 +111,33 @@ public class TCPdataTracker {
         return data;
     }
 
+    // For sender, take the chunks from a prefetcher instead of reading them from the file
+    public void setPrefetcher(TCPprefetcher prefetcher) {
+        this.prefetcher = prefetcher;
+    }
+
+    // For sender, reads the next chunk straight into a packet buffer and returns its length, -1 when there is no more data
+    // With a prefetcher 0 means the next chunk hasn't been read yet
+    public int senderRetrieveData(ByteBuffer packetBuffer, int offset) {
+        int length;
+        try {
+            length = this.prefetcher != null ? this.prefetcher.take(packetBuffer, offset) : fileHandler.readNextChunk(packetBuffer, offset);
+        } catch (Exception e) {
+            System.out.println("Error retrieving data chunk: " + e.getMessage());
+            return -1;
+        }
+        if (length < 0) {
+            this.currentChunkSize = 0;
+            return -1;
+        }
+
+        // Update the last byte sent
+        this.lastByteSent += length;
+        this.currentChunkSize = length;
+
+        return length;
+    }
+
     // Acknowledge the data
     public void senderAckData() {
 
@@ -125,26 +148,16 @@ public class TCPdataTracker {
     // Check if there is data to send
     public boolean hasDataToSend() {
         // Check if there is data to send
-        return this.lastByteSent < this.lastByteAcked + this.maxSendBuffer;
+        return TCPsequence.lessThan(this.lastByteSent, this.lastByteAcked + this.maxSendBuffer);
     }
 
-    // Copmpleted data
+    // Completed data, ACKs are cumulative so everything below the ack number has been received
     public void addAckedData(int ackNumber) {
-        // Add the completed data to the list
-        this.completedData.add(ackNumber);
+        this.lastByteAcked = TCPsequence.max(this.lastByteAcked, ackNumber);
     }
 
-    // Is data previously acknowledged
+    // Is data previously acknowledged, an ACK at or before the highest one adds no new information
     public boolean isDataAcked(int ackNumber) {
-        if (this.completedData.isEmpty()) {
-            return false; // No data has been acknowledged yet
-        }
-        // Check if the ack number is in the list
-        for (int testAck : this.completedData) {
-            if (testAck == ackNumber) {
-                return true;
-            }
-        }
-        return false;
+        return TCPsequence.lessOrEqual(ackNumber, this.lastByteAcked);
     }
 }
\ No newline at end of file
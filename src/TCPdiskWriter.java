@@ -0,0 +1,195 @@
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes the receiver's in order data to the file on a thread of its own, so disk latency doesn't hold up the ACKs.
+ * Writing in the receive loop puts every slow write into the round trip the sender measures, which grows its timeout and shrinks its window.
+ * -- The receive loop copies each in order payload into a ring of buffers a few windows deep, the data can be ACKed once it is queued.
+ * -- One thread puts and one thread takes, so the ring needs no lock: each side only writes its own index and reads the other's.
+ * -- The writer parks while the ring is empty, the receive loop wakes it once a quarter of the ring is waiting, so it writes in batches.
+ *    A parked writer also wakes up on its own now and then, data doesn't sit in the ring for long when the sender is slow.
+ * -- When the ring is full the receive loop waits for the writer, it stops reading packets and ACKing, and the sender's window fills up.
+ *    So the sender is only held back when the disk falls a whole ring behind, not by the latency of each write.
+ * The depth of the ring when a payload is queued, how often and how long the receive loop waited on a full ring and the time spent
+ * writing are kept as metrics.
+ */
+public class TCPdiskWriter implements Runnable {
+
+    private static final long MAX_BYTES = 32 * 1024 * 1024; // Most memory the ring of a connection takes, however large its window
+    private static final long PARK_NANOS = 10 * 1000000L; // Longest either side parks before it checks again
+
+    private TCPfileHandling fileHandler;
+    private byte[][] chunks; // Ring of payload buffers, each laid out like a packet with the payload after the 24 byte header
+    private int[] lengths; // Payload bytes in each buffer
+    private int mask; // Buffers - 1, the number of buffers is a power of 2
+    private int wakeBatch; // Payloads waiting that make the receive loop wake the writer
+    private Thread writer;
+    private Thread receiver; // Thread of the receive loop, set before it first parks
+
+    private volatile long head; // Next payload the writer writes, only written by the writer
+    private volatile long tail; // Next buffer the receive loop fills, only written by the receive loop
+    private volatile boolean writerParked; // The writer is parked, or about to park, on an empty ring
+    private volatile boolean receiverParked; // The receive loop is parked, or about to park, on a full ring
+    private volatile boolean closed; // No more payloads will be queued, the writer stops once the ring is empty
+    private volatile IOException failure; // Write error, payloads after it are dropped
+
+    // Metrics, the first four are only written by the receive loop, the last one by the writer
+    private long payloadsQueued;
+    private long depthTotal; // Payloads waiting in the ring each time one was queued, summed
+    private long fullWaits; // Times the receive loop found the ring full
+    private long fullWaitNanos; // Time the receive loop spent waiting on a full ring
+    private volatile long writeNanos; // Time the writer spent in file writes
+
+    /**
+     * @param fileHandler file to write, from the writer thread only once start is called
+     * @param chunkCount payloads the ring holds, rounded up to a power of 2 and held to 32 MB
+     * @param chunkSize largest payload
+     */
+    public TCPdiskWriter(TCPfileHandling fileHandler, int chunkCount, int chunkSize) {
+        int count = 2;
+        while (count < chunkCount && (long) count * 2 * (24 + chunkSize) <= MAX_BYTES) {
+            count *= 2;
+        }
+        this.fileHandler = fileHandler;
+        this.chunks = new byte[count][24 + chunkSize];
+        this.lengths = new int[count];
+        this.mask = count - 1;
+        this.wakeBatch = Math.max(count / 4, 1);
+    }
+
+    /**
+     * Start writing.
+     */
+    public void start() {
+        this.writer = new Thread(this, "disk writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queue a payload to be written after the ones before it, only called from the receive loop.
+     * Waits for the writer while the ring is full.
+     * @param data packet holding the payload after its 24 byte header
+     * @param dataLength bytes in the payload
+     * @return false if a write failed, the payload is not queued
+     */
+    public boolean put(byte[] data, int dataLength) {
+        if (dataLength > this.chunks[0].length - 24) {
+            throw new IllegalArgumentException("Payload of " + dataLength + " bytes is larger than the disk writer's " + (this.chunks[0].length - 24));
+        }
+        long nextTail = this.tail;
+        if (nextTail - this.head > this.mask) {
+            // Wait for the writer to free a buffer, checking the head again after flagging so a write in between isn't missed
+            this.fullWaits++;
+            long waitedFrom = System.nanoTime();
+            this.receiver = Thread.currentThread();
+            while (nextTail - this.head > this.mask && this.failure == null) {
+                this.receiverParked = true;
+                if (nextTail - this.head > this.mask) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                this.receiverParked = false;
+            }
+            this.fullWaitNanos += System.nanoTime() - waitedFrom;
+        }
+        if (this.failure != null) {
+            return false;
+        }
+        int slot = (int) (nextTail & this.mask);
+        System.arraycopy(data, 24, this.chunks[slot], 24, dataLength);
+        this.lengths[slot] = dataLength;
+        long waiting = nextTail + 1 - this.head;
+        this.payloadsQueued++;
+        this.depthTotal += waiting;
+        // Publish the payload, waking the writer once there is a batch to write
+        this.tail = nextTail + 1;
+        if (this.writerParked && waiting >= this.wakeBatch) {
+            LockSupport.unpark(this.writer);
+        }
+        return true;
+    }
+
+    /**
+     * The writer thread, writes the ring out until it is closed and empty.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            long nextHead = this.head;
+            if (nextHead == this.tail) {
+                if (this.closed && nextHead == this.tail) {
+                    return;
+                }
+                // Wait for payloads, checking the tail again after flagging so a put in between isn't missed
+                this.writerParked = true;
+                if (nextHead == this.tail && this.closed == false) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                this.writerParked = false;
+                continue;
+            }
+            int slot = (int) (nextHead & this.mask);
+            if (this.failure == null) {
+                long writeAt = System.nanoTime();
+                try {
+                    this.fileHandler.writeByteArrayToFile(this.chunks[slot], this.lengths[slot]);
+                } catch (IOException e) {
+                    System.out.println("Error writing data to file: " + e.getMessage());
+                    this.failure = e;
+                }
+                this.writeNanos += System.nanoTime() - writeAt;
+            }
+            // Hand the buffer back to the receive loop
+            this.head = nextHead + 1;
+            if (this.receiverParked) {
+                LockSupport.unpark(this.receiver);
+            }
+        }
+    }
+
+    /**
+     * Write out everything queued and stop the writer, the file handler can be closed after.
+     * Nothing can be queued once it is called, calling it again does nothing.
+     */
+    public void close() {
+        this.closed = true;
+        if (this.writer != null) {
+            LockSupport.unpark(this.writer);
+            try {
+                this.writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Whether every payload queued so far was written without an error, only known for sure after close
+    public boolean isHealthy() {
+        return this.failure == null;
+    }
+
+    // Payloads the ring holds
+    public int getCapacity() {
+        return this.mask + 1;
+    }
+
+    // Payloads waiting in the ring each time one was queued, on average
+    public double getAverageDepth() {
+        return this.payloadsQueued == 0 ? 0 : (double) this.depthTotal / this.payloadsQueued;
+    }
+
+    // Times the receive loop found the ring full and waited for the writer
+    public long getFullWaits() {
+        return this.fullWaits;
+    }
+
+    // Time the receive loop spent waiting on a full ring, in nanoseconds
+    public long getFullWaitNanos() {
+        return this.fullWaitNanos;
+    }
+
+    // Time the writer spent in file writes, in nanoseconds
+    public long getWriteNanos() {
+        return this.writeNanos;
+    }
+}
@@ -11,12 +11,34 @@ public class TCPend {
 
     // Arguments that can be passed in 
     private String file_name; // Filename that will be used
-    private short communicationPort; // Port that will be used for communication on this host
+    private int communicationPort; // Port that will be used for communication on this host, the first of the flows' ports when a file is striped
     private short targetPort; // Port at remote host that will be targetted
     private String targetIPAddress; // IP address to communicate to
     private int maxUnitSize; // Maximum Transmission Unit in bytes
     private int maxUnitCount; // Maximumliding window size in number of segments 
 
+    // Optional arguments for the receiver's ACK policy, -1 keeps the connection's default
+    private int ackEverySegments = -1; // -ack, ACK every this many full segments
+    private int ackDelayMillis = -1; // -ackdelay, longest an ACK is held back in milliseconds
+
+    // Optional argument for either end, -1 keeps the connection's default
+    private int sackBlocks = -1; // -sack, most SACK blocks in an ACK, 0 turns SACK off
+
+    // Optional argument for the sender, null keeps the connection's default
+    private String congestionControl; // -cc, reno, cubic or bbr
+    private int pacingBurst = -1; // -burst, segments the pacer lets go back to back, 0 turns pacing off
+    private int prefetchWindows = -1; // -prefetch, windows of the file read ahead on a thread of its own, 0 turns read-ahead off
+    private int pathMtuProbe = 0; // -pmtu, 1 probes for the largest datagram that gets to the receiver before sending
+
+    // Optional argument for the receiver, -1 keeps the connection's default
+    private int writeQueueWindows = -1; // -writequeue, windows of data queued for a disk writer thread, 0 writes in the receive loop
+
+    // Optional argument for the receiver, 0 serves one transfer and exits
+    private int serverWorkers = 0; // -server, serve many senders on the port, this many at once, each into its own file
+
+    // Optional argument for either end, 0 sends the file over one connection
+    private int flows = 0; // -flows, split the file into this many byte ranges sent over as many connections at once
+
     // Other Attributes
     private boolean extra_logging = true; // Change this flag based on level of logging needed
 
@@ -28,12 +50,10 @@ public class TCPend {
         // Create an instance of TCPend and TCPconnection
         TCPend tcpE = new TCPend();
 
-        // Verify there was an appropriate amount of arguments sent
-        if (args.length != 12) {
-            if (args.length != 8) {
-                System.out.println("An incorrect number of arguements was sent for a sender or receiver.");
-                return;
-            }
+        // Verify there was an appropriate amount of arguments sent, 8 for a receiver or 12 for a sender plus optional flag value pairs
+        if (args.length < 8 || args.length % 2 != 0) {
+            System.out.println("An incorrect number of arguements was sent for a sender or receiver.");
+            return;
         }
 
         // Parse the arguments and perform validation
@@ -42,6 +62,26 @@ public class TCPend {
             return;
         }
 
+        // A receiver serving many senders makes a file and a connection for each one as it connects
+        if (tcpE.serverWorkers > 0) {
+            if (tcpE.runServer() == false) {
+                System.out.println("TCP server could not be started. Exiting.");
+                return;
+            }
+            System.out.println("TCPend execution completed.");
+            return;
+        }
+
+        // A striped file is sent over a connection per range, from ports after -p, and received by a server on -p
+        if (tcpE.flows > 0) {
+            if (tcpE.runStriped() == false) {
+                System.out.println("Striped transfer did not complete. Exiting.");
+                return;
+            }
+            System.out.println("TCPend execution completed.");
+            return;
+        }
+
         // Perform file handling and validation
         TCPfileHandling fileChunker = tcpE.createFileChunker();
         if (fileChunker == null) {
@@ -77,7 +117,7 @@ public class TCPend {
 		{
 			String arg = args[i];
 			if (arg.equals("-p"))
-			{ this.communicationPort = Short.parseShort(args[++i]); }
+			{ this.communicationPort = Integer.parseInt(args[++i]); }
 			else if(arg.equals("-s"))
             { this.targetIPAddress = args[++i];
               tcp_type = TCP_sender; }
@@ -89,6 +129,26 @@ public class TCPend {
 			{ this.maxUnitSize = Integer.parseInt(args[++i]); }
 			else if (arg.equals("-c"))
 			{ this.maxUnitCount = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-ack"))
+			{ this.ackEverySegments = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-ackdelay"))
+			{ this.ackDelayMillis = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-sack"))
+			{ this.sackBlocks = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-cc"))
+			{ this.congestionControl = args[++i]; }
+			else if (arg.equals("-burst"))
+			{ this.pacingBurst = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-prefetch"))
+			{ this.prefetchWindows = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-pmtu"))
+			{ this.pathMtuProbe = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-writequeue"))
+			{ this.writeQueueWindows = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-server"))
+			{ this.serverWorkers = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-flows"))
+			{ this.flows = Integer.parseInt(args[++i]); }
 		}
 
         // Verify that the needed arguments for Listener or sender were given.
@@ -103,6 +163,26 @@ public class TCPend {
                 return false;
             }
         }
+        if (maxUnitSize < 1 || maxUnitSize > TCPconnection.MAX_SEGMENT_SIZE) {
+            System.out.println("The MTU must be from 1 to " + TCPconnection.MAX_SEGMENT_SIZE + " bytes, a segment and its header have to fit in one UDP datagram.");
+            return false;
+        }
+        if (pathMtuProbe < 0 || pathMtuProbe > 1 || (pathMtuProbe == 1 && tcp_type != TCP_sender)) {
+            System.out.println("The path MTU probe is turned on with 1 and off with 0, only by a sender.");
+            return false;
+        }
+        if (serverWorkers < 0 || (serverWorkers > 0 && tcp_type == TCP_sender)) {
+            System.out.println("Only a receiver can serve many senders, with at least 1 worker.");
+            return false;
+        }
+        if (communicationPort < 0 || communicationPort > 0xFFFF) {
+            System.out.println("The port must be between 1 and 65535.");
+            return false;
+        }
+        if (flows < 0 || flows > 0xFFFF || (flows > 0 && serverWorkers > 0) || communicationPort + Math.max(flows - 1, 0) > 0xFFFF) {
+            System.out.println("A file can be striped over 1 to 65535 flows, with a port free after -p for each one, and not by a server of many senders.");
+            return false;
+        }
 
         // If extra logging then print details passed in
         if (extra_logging) {
@@ -113,6 +193,33 @@ public class TCPend {
             System.out.println("TCPend: File Name: " + file_name);
             System.out.println("TCPend: MTU: " + maxUnitSize);
             System.out.println("TCPend: Window Size: " + maxUnitCount);
+            if (ackEverySegments != -1 || ackDelayMillis != -1) {
+                System.out.println("TCPend: ACK every " + ackEverySegments + " segments, delay " + ackDelayMillis + " ms");
+            }
+            if (sackBlocks != -1) {
+                System.out.println("TCPend: SACK blocks: " + sackBlocks);
+            }
+            if (congestionControl != null) {
+                System.out.println("TCPend: Congestion Control: " + congestionControl);
+            }
+            if (pacingBurst != -1) {
+                System.out.println("TCPend: Pacing Burst: " + pacingBurst + (pacingBurst == 0 ? " (pacing off)" : " segments"));
+            }
+            if (prefetchWindows != -1) {
+                System.out.println("TCPend: Prefetch: " + prefetchWindows + (prefetchWindows == 0 ? " (read-ahead off)" : " windows"));
+            }
+            if (pathMtuProbe == 1) {
+                System.out.println("TCPend: Path MTU Probe: on");
+            }
+            if (writeQueueWindows != -1) {
+                System.out.println("TCPend: Write Queue: " + writeQueueWindows + (writeQueueWindows == 0 ? " (write-behind off)" : " windows"));
+            }
+            if (serverWorkers > 0) {
+                System.out.println("TCPend: Server Workers: " + serverWorkers);
+            }
+            if (flows > 0) {
+                System.out.println("TCPend: Flows: " + flows);
+            }
         }
 
         return true;
@@ -156,17 +263,122 @@ public class TCPend {
      * Create the connection instances
      */
     public TCPconnection createConnection(TCPfileHandling fileChunkInstance) {
+        return createConnection(fileChunkInstance, this.communicationPort);
+    }
+
+    /**
+     * Create the connection instances, a sender's sends from the given port
+     */
+    public TCPconnection createConnection(TCPfileHandling fileChunkInstance, int communicationPort) {
         if (this.tcp_type == this.TCP_sender) {
             // Create a connection for the sender
-            TCPconnection tcpConnect = new TCPconnection(fileChunkInstance, this.targetIPAddress, this.communicationPort, this.targetPort, this.maxUnitSize, this.maxUnitCount);
+            TCPconnection tcpConnect = new TCPconnection(fileChunkInstance, this.targetIPAddress, communicationPort, this.targetPort, this.maxUnitSize, this.maxUnitCount);
+            if (this.sackBlocks != -1 && tcpConnect.setSackBlocks(this.sackBlocks) == false) {
+                return null;
+            }
+            if (this.congestionControl != null && tcpConnect.setCongestionControl(this.congestionControl) == false) {
+                return null;
+            }
+            if (this.pacingBurst != -1 && tcpConnect.setPacing(this.pacingBurst) == false) {
+                return null;
+            }
+            if (this.prefetchWindows != -1 && tcpConnect.setPrefetch(this.prefetchWindows) == false) {
+                return null;
+            }
+            tcpConnect.setPathMtuProbe(this.pathMtuProbe == 1);
             return tcpConnect;
         }
         // Create a connection for the receiver
         TCPconnection tcpConnect = new TCPconnection(fileChunkInstance, this.communicationPort, this.maxUnitSize, this.maxUnitCount);
+        if (this.ackEverySegments != -1 || this.ackDelayMillis != -1) {
+            if (tcpConnect.setAckPolicy(this.ackEverySegments, this.ackDelayMillis) == false) {
+                return null;
+            }
+        }
+        if (this.sackBlocks != -1 && tcpConnect.setSackBlocks(this.sackBlocks) == false) {
+            return null;
+        }
+        if (this.writeQueueWindows != -1 && tcpConnect.setWriteQueue(this.writeQueueWindows) == false) {
+            return null;
+        }
         return tcpConnect;
     }
 
 
+    /**
+     * Serve many senders on the port, every sender's transfer goes into its own file named after the -f name.
+     * @return false if the receiver's options are invalid or the port could not be opened
+     */
+    public boolean runServer() {
+        // Check the receiver's options once, every connection is set up with them
+        if (TCPconnection.checkReceiverOptions(this.ackEverySegments, this.ackDelayMillis, this.sackBlocks, this.writeQueueWindows) == false) {
+            return false;
+        }
+        // Each connection's queue holds two windows, like a socket receive buffer
+        TCPserver server = new TCPserver(this.file_name, this.communicationPort, TCPconnection.maxBytesFor(this.maxUnitSize), this.serverWorkers,
+            2 * this.maxUnitCount, fileHandler -> createConnection(fileHandler));
+        return server.serve();
+    }
+
+    /**
+     * Send or receive a file split into -flows byte ranges, each range over a connection of its own, all at once.
+     * The sender splits the file on segment boundaries and sends range i from port -p + i, the receiver serves every range on -p
+     * and writes it at its offset in the -f file.
+     * @return false if a range did not arrive
+     */
+    public boolean runStriped() {
+        TCPfileHandling fileCheck = createFileChunker();
+        if (fileCheck == null) {
+            return false;
+        }
+
+        if (this.tcp_type == this.TCP_receiver) {
+            if (TCPconnection.checkReceiverOptions(this.ackEverySegments, this.ackDelayMillis, this.sackBlocks, this.writeQueueWindows) == false) {
+                return false;
+            }
+            TCPserver server = new TCPserver(this.file_name, this.communicationPort, TCPconnection.maxBytesFor(this.maxUnitSize), this.flows,
+                2 * this.maxUnitCount, fileHandler -> createConnection(fileHandler));
+            server.setStripes(this.flows);
+            return server.serve() && server.getStripesReceived() == this.flows;
+        }
+
+        // Ranges are whole segments, the last one takes what is left
+        long fileLength = new File(this.file_name).length();
+        long segments = (fileLength + this.maxUnitSize - 1) / this.maxUnitSize;
+        long rangeLength = (segments + this.flows - 1) / this.flows * this.maxUnitSize;
+        TCPconnection[] connections = new TCPconnection[this.flows];
+        for (int i = 0; i < this.flows; i++) {
+            long offset = Math.min(i * rangeLength, fileLength);
+            connections[i] = createConnection(new TCPfileHandling(this.file_name, this.maxUnitSize), this.communicationPort + i);
+            if (connections[i] == null || connections[i].setStripe(offset, Math.min(rangeLength, fileLength - offset), i, this.flows) == false) {
+                return false;
+            }
+        }
+
+        long start = System.nanoTime();
+        boolean[] completed = new boolean[this.flows];
+        Thread[] threads = new Thread[this.flows];
+        for (int i = 0; i < this.flows; i++) {
+            final int flow = i;
+            threads[i] = new Thread(() -> completed[flow] = connections[flow].performTCPcommunication(), "flow-" + i);
+            threads[i].start();
+        }
+        int completedFlows = 0;
+        for (int i = 0; i < this.flows; i++) {
+            try {
+                threads[i].join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            completedFlows += completed[i] ? 1 : 0;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("Sent %d bytes over %d flows in %.3f seconds, %d flows completed.", fileLength, this.flows, seconds, completedFlows));
+        return completedFlows == this.flows;
+    }
+
+
     /****************************** Below code is for conversions of the IP Address *****************************************************/
 
     /**
@@ -0,0 +1,214 @@
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class logs one line per packet sent or received without formatting or printing on the network thread.
+ * -- Events are written as primitives into preallocated arrays used as a ring buffer, one producer and one consumer.
+ * -- A single background thread drains every open log and prints the lines in the same format as TCPmessageStatus.printMessageDetails.
+ * -- Recording never blocks, an event that finds the ring full is dropped and counted instead.
+ */
+public class TCPeventLog {
+
+    private static final int DEFAULT_CAPACITY = 1 << 16;
+
+    // Flag bits of an event
+    private static final byte SENT = 1;
+    private static final byte RECEIVED = 1 << 1;
+    private static final byte SYN = 1 << 2;
+    private static final byte ACK = 1 << 3;
+    private static final byte FIN = 1 << 4;
+    private static final byte DATA = 1 << 5;
+
+    private final int mask;
+    private final long[] times;
+    private final int[] sequenceNumbers;
+    private final int[] dataLengths;
+    private final int[] acknowledgmentNumbers;
+    private final byte[] flags;
+
+    private final AtomicLong head = new AtomicLong(); // Next event to print, only advanced by the drain thread
+    private final AtomicLong tail = new AtomicLong(); // Next event to record, only advanced by the network thread
+    private long cachedHead; // Network thread's last look at head, so it doesn't read it on every event
+    private long dropped; // Events dropped because the ring was full
+
+    public TCPeventLog() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of events the ring holds, rounded up to a power of 2
+     */
+    public TCPeventLog(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.mask = size - 1;
+        this.times = new long[size];
+        this.sequenceNumbers = new int[size];
+        this.dataLengths = new int[size];
+        this.acknowledgmentNumbers = new int[size];
+        this.flags = new byte[size];
+        Drainer.register(this);
+    }
+
+    /**
+     * Record a packet that was sent or received, only call this from the one network thread.
+     * @param sent true for a sent packet, false for a received one
+     * @param message
+     * @param timeSinceStartUp in nanoseconds
+     */
+    public void record(boolean sent, TCPmessageStatus message, long timeSinceStartUp) {
+        long position = this.tail.get();
+        if (position - this.cachedHead >= this.flags.length) {
+            this.cachedHead = this.head.get();
+            if (position - this.cachedHead >= this.flags.length) {
+                this.dropped++;
+                return;
+            }
+        }
+
+        int index = (int) position & this.mask;
+        this.times[index] = timeSinceStartUp;
+        this.sequenceNumbers[index] = message.byteSequenceNumber;
+        this.dataLengths[index] = message.dataLength;
+        this.acknowledgmentNumbers[index] = message.acknowledgmentNumber;
+        this.flags[index] = (byte) ((sent ? SENT : RECEIVED)
+            | (message.SYN == 1 ? SYN : 0)
+            | (message.ACK == 1 ? ACK : 0)
+            | (message.FIN == 1 ? FIN : 0)
+            | (message.containsData ? DATA : 0));
+
+        // Publish the event to the drain thread
+        this.tail.lazySet(position + 1);
+    }
+
+    /**
+     * Wait for the drain thread to print every recorded event and stop draining this log.
+     * Call this from the network thread once it records no more events.
+     */
+    public void close() {
+        while (this.head.get() < this.tail.get()) {
+            LockSupport.unpark(Drainer.thread);
+            LockSupport.parkNanos(100000L);
+        }
+        Drainer.unregister(this);
+        if (this.dropped > 0) {
+            System.out.println("Log events dropped: " + this.dropped);
+        }
+    }
+
+    public long getDropped() {
+        return this.dropped;
+    }
+
+    /**
+     * Append the recorded events to a batch of lines, the slots stay taken until release is called.
+     * @return position after the last event appended
+     */
+    private long drainTo(StringBuilder lines, int maxEvents) {
+        long position = this.head.get();
+        long end = Math.min(this.tail.get(), position + maxEvents);
+        for (long next = position; next < end; next++) {
+            int index = (int) next & this.mask;
+            byte eventFlags = this.flags[index];
+            appendDetails(lines, (eventFlags & SENT) != 0, (eventFlags & RECEIVED) != 0, this.times[index],
+                (eventFlags & SYN) != 0, (eventFlags & ACK) != 0, (eventFlags & FIN) != 0, (eventFlags & DATA) != 0,
+                this.sequenceNumbers[index], this.dataLengths[index], this.acknowledgmentNumbers[index]);
+            lines.append('\n');
+        }
+        return end;
+    }
+
+    // Hand the slots of printed events back to the network thread
+    private void release(long position) {
+        this.head.lazySet(position);
+    }
+
+    /**
+     * Append one packet in the human readable format: direction, seconds since start up, S A F D flags, sequence number, data length, acknowledgment number.
+     */
+    public static void appendDetails(StringBuilder line, boolean sent, boolean received, long timeSinceStartUp,
+            boolean syn, boolean ack, boolean fin, boolean data, int byteSequenceNumber, int dataLength, int acknowledgmentNumber) {
+        // Add the detail of sent or received
+        if (sent) {
+            line.append("snd ");
+        } else if (received) {
+            line.append("rcv ");
+        } else {
+            line.append("N/A ");
+        }
+
+        // Add the time since startup in seconds with 3 decimal places, rounded like %4.3f
+        long millis = (timeSinceStartUp + 500000L) / 1000000L;
+        if (millis < 0) {
+            line.append('-');
+            millis = -millis;
+        }
+        line.append(millis / 1000).append('.');
+        long fraction = millis % 1000;
+        if (fraction < 100) {
+            line.append('0');
+        }
+        if (fraction < 10) {
+            line.append('0');
+        }
+        line.append(fraction).append(' ');
+
+        // Add the flags
+        line.append(syn ? "S " : "- ");
+        line.append(ack ? "A " : "- ");
+        line.append(fin ? "F " : "- ");
+        line.append(data ? "D " : "- ");
+
+        // Add the byte sequence number, the number of bytes in the data and the acknowledgment number, sequence numbers are unsigned
+        line.append(TCPsequence.unsigned(byteSequenceNumber)).append(' ');
+        line.append(dataLength).append(' ');
+        line.append(TCPsequence.unsigned(acknowledgmentNumber)).append(' ');
+    }
+
+    /**
+     * The one background thread that prints the events of every open log.
+     * Lines are printed in batches so stdout is written once per batch rather than once per packet.
+     */
+    private static final class Drainer implements Runnable {
+
+        private static final int BATCH_EVENTS = 1024;
+        private static final long IDLE_PARK_NANOS = 1000000L; // 1 ms
+
+        private static final CopyOnWriteArrayList<TCPeventLog> logs = new CopyOnWriteArrayList<TCPeventLog>();
+        private static volatile Thread thread;
+
+        private static synchronized void register(TCPeventLog log) {
+            logs.add(log);
+            if (thread == null) {
+                thread = new Thread(new Drainer(), "TCPeventLog");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        private static void unregister(TCPeventLog log) {
+            logs.remove(log);
+        }
+
+        @Override
+        public void run() {
+            StringBuilder lines = new StringBuilder(BATCH_EVENTS * 48);
+            while (true) {
+                boolean drained = false;
+                for (TCPeventLog log : logs) {
+                    long end = log.drainTo(lines, BATCH_EVENTS);
+                    if (lines.length() > 0) {
+                        System.out.print(lines);
+                        lines.setLength(0);
+                        drained = true;
+                    }
+                    // Only release after printing, so close returns once every line is out
+                    log.release(end);
+                }
+                if (!drained) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+        }
+    }
+}
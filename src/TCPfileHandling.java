@@ -1,4 +1,6 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 
 /**
@@ -17,9 +19,16 @@ public class TCPfileHandling {
     private File file;
     private String filePath;
     private int chunkSize;
-    private int currentPosition;
+    private long currentPosition; // File offsets are 64 bit, files can be any size
     public int currentChunkSize; // Size of the current chunk read
-    public int totalData;
+    public long totalData;
+    private FileChannel readChannel; // Opened once on the first read and kept for the whole transfer
+    private long fileLength;
+    private long readEnd = -1; // Offset reading stops at when only a range of the file is sent, -1 reads to the end of the file
+    private FileChannel writeChannel; // Opened once on the first write and kept for the whole transfer
+    private ByteBuffer writeBuffer; // Received data is gathered here and written out in large sequential writes
+    private long writePosition; // File offset the write buffer is written out at, writes are positional so several handlers can fill one file
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
 
     public TCPfileHandling(String filePath, int chunkSize) {
         this.filePath = filePath;
@@ -37,6 +46,9 @@ public class TCPfileHandling {
     }
 
     public byte[] readNextChunk() throws IOException {
+        // Open the file the first time through
+        openReadChannel();
+
         // Check if we have reached the end of the file
         if (!hasNextChunk()) {
             System.out.println("End of file reached.");
@@ -44,18 +56,19 @@ public class TCPfileHandling {
         }
 
         // Calculate the size of the next chunk
-        int remainingBytes = (int) (file.length() - currentPosition);
-        int bytesToRead = Math.min(chunkSize, remainingBytes);
+        int bytesToRead = (int) Math.min(chunkSize, readLimit() - currentPosition);
 
         this.totalData += bytesToRead;
 
         // Create a byte array to hold the chunk data
         byte[] chunkData = new byte[bytesToRead];
 
-        // Read the chunk from the file
-        try (FileInputStream fis = new FileInputStream(this.file)) {
-            fis.skip(currentPosition); // Skip to the current position
-            fis.read(chunkData); // Read the chunk data
+        // Positional read straight into the chunk, no seek or reopen needed
+        ByteBuffer chunkBuffer = ByteBuffer.wrap(chunkData);
+        while (chunkBuffer.hasRemaining()) {
+            if (this.readChannel.read(chunkBuffer, currentPosition + chunkBuffer.position()) < 0) {
+                throw new EOFException("File " + this.filePath + " ended early at byte " + (currentPosition + chunkBuffer.position()));
+            }
         }
 
         // Update the current position
@@ -65,8 +78,116 @@ public class TCPfileHandling {
         return chunkData;
     }
 
+    /**
+     * Read the next chunk straight into a buffer, used to fill a packet buffer without an intermediate array.
+     * @param destination buffer to read into
+     * @param offset position in the buffer where the chunk starts
+     * @return number of bytes read, -1 once the end of the file is reached
+     * @throws IOException
+     */
+    public int readNextChunk(ByteBuffer destination, int offset) throws IOException {
+        // Open the file the first time through
+        openReadChannel();
+
+        // Check if we have reached the end of the file
+        if (!hasNextChunk()) {
+            System.out.println("End of file reached.");
+            return -1; // No more data to read
+        }
+
+        // Calculate the size of the next chunk
+        int bytesToRead = (int) Math.min(chunkSize, readLimit() - currentPosition);
+
+        this.totalData += bytesToRead;
+
+        // Positional read into the buffer
+        destination.limit(offset + bytesToRead);
+        destination.position(offset);
+        while (destination.hasRemaining()) {
+            if (this.readChannel.read(destination, currentPosition + destination.position() - offset) < 0) {
+                throw new EOFException("File " + this.filePath + " ended early at byte " + (currentPosition + destination.position() - offset));
+            }
+        }
+        destination.clear();
+
+        // Update the current position
+        currentPosition += bytesToRead;
+        this.currentChunkSize = bytesToRead;
+
+        return bytesToRead;
+    }
+
     public boolean hasNextChunk() {
-        return currentPosition < this.file.length();
+        if (this.readChannel == null) {
+            return currentPosition < (this.readEnd >= 0 ? Math.min(this.readEnd, this.file.length()) : this.file.length());
+        }
+        return currentPosition < readLimit();
+    }
+
+    /**
+     * Only read one range of the file, used when a file is split over several connections.
+     * Call before the first read.
+     * @param offset file offset of the first byte to read
+     * @param length bytes to read
+     */
+    public void setReadRange(long offset, long length) {
+        this.currentPosition = offset;
+        this.readEnd = offset + length;
+    }
+
+    /**
+     * Start writing at an offset instead of the start of the file, used when a file is received over several connections.
+     * Call before the first write, the handlers writing the other ranges must each open the file themselves.
+     * @param offset file offset of the first byte written
+     */
+    public void setWriteOffset(long offset) {
+        this.writePosition = offset;
+    }
+
+    // Offset reading stops at, the end of the range or of the file
+    private long readLimit() {
+        return this.readEnd >= 0 ? Math.min(this.readEnd, this.fileLength) : this.fileLength;
+    }
+
+    /**
+     * Open the file for reading once, the length is read at the same time so it is not queried for every chunk.
+     * @throws IOException
+     */
+    private void openReadChannel() throws IOException {
+        if (this.readChannel != null) {
+            return;
+        }
+        this.readChannel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ);
+        this.fileLength = this.readChannel.size();
+    }
+
+    /**
+     * Close any channel held open on the file, buffered data is written out first.
+     */
+    public void close() {
+        try {
+            if (this.readChannel != null) {
+                this.readChannel.close();
+                this.readChannel = null;
+            }
+            if (this.writeChannel != null) {
+                flushWriteBuffer();
+                this.writeChannel.close();
+                this.writeChannel = null;
+            }
+        } catch (IOException e) {
+            System.out.println("Error closing file " + this.filePath + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write out the data gathered in the write buffer, so a write that fails is reported before the transfer is called complete.
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        if (this.writeChannel != null) {
+            flushWriteBuffer();
+        }
     }
 
     public void setMaxChunkSize(int chunkSize) {
@@ -78,13 +199,14 @@ public class TCPfileHandling {
     public int getCurrentChunkSize() {
         return this.currentChunkSize;
     }
-    public int getCurrentPosition() {
+    public long getCurrentPosition() {
         return this.currentPosition;
     }
 
 
     /**
-     * This method will take a byte array and write it to the end of a file.
+     * This method will take a byte array and write it to the file after the data written before.
+     * The data is held in the write buffer and only written out once the buffer is full or the file is closed.
      * 
      * @param data
      * @param dataLength
@@ -92,17 +214,40 @@ public class TCPfileHandling {
      */
     public void writeByteArrayToFile(byte[] data, int dataLength) throws IOException {
         
+        // Open the file the first time through
+        if (this.writeChannel == null) {
+            this.writeChannel = FileChannel.open(this.file.toPath(), StandardOpenOption.WRITE);
+            this.writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        }
+
+        // Make room in the buffer if the data won't fit
+        if (this.writeBuffer.remaining() < dataLength) {
+            flushWriteBuffer();
+        }
+
         // Working data is data without first 24 bytes
-        byte[] workingData = new byte[dataLength];
-        System.arraycopy(data, 24, workingData, 0, dataLength);
+        if (dataLength > this.writeBuffer.capacity()) {
+            ByteBuffer direct = ByteBuffer.wrap(data, 24, dataLength);
+            while (direct.hasRemaining()) {
+                this.writePosition += this.writeChannel.write(direct, this.writePosition);
+            }
+        } else {
+            this.writeBuffer.put(data, 24, dataLength);
+        }
 
-        this.totalData += workingData.length;
-        
-        // Write the byte array to the end of the file
-        try (FileOutputStream fos = new FileOutputStream(this.file, true)) {
-            fos.write(workingData);
-            fos.flush();
+        this.totalData += dataLength;
+    }
+
+    /**
+     * Write everything gathered in the write buffer to the file.
+     * @throws IOException
+     */
+    private void flushWriteBuffer() throws IOException {
+        this.writeBuffer.flip();
+        while (this.writeBuffer.hasRemaining()) {
+            this.writePosition += this.writeChannel.write(this.writeBuffer, this.writePosition);
         }
+        this.writeBuffer.clear();
     }
 
     /******************************************** Code to handle file management. **************************************************/
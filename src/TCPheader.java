@@ -1,5 +1,5 @@
 
-
+import java.nio.ByteBuffer;
 
 public class TCPheader {
     public int byteSequenceNumber;
@@ -11,7 +11,11 @@ public class TCPheader {
     public int ACK;
     public byte[] checksum;
     public byte[] data;
+    public byte[] options; // Option bytes written after the header, see TCPoptions
+    public int optionsLength; // Number of option bytes after the header
     public byte[] fullHeader;
+    public int packetLength; // Bytes of fullHeader that make up the packet, a reused buffer can be larger
+    private ByteBuffer packetView; // Reusable view over fullHeader for absolute reads and writes
     public boolean checksumValid;
 
     public TCPheader() {
@@ -24,10 +28,32 @@ public class TCPheader {
         this.FIN = 0;
         this.checksum = new byte[2];
         this.data = new byte[0];
+        this.options = new byte[0];
+        this.optionsLength = 0;
         this.checksumValid = true;
     }
 
+    /**
+     * Use this for a header that is reused for many packets.
+     * The buffer has room for the header and maxDataLength bytes of data, the data is written straight into it at offset 24.
+     * @param maxDataLength
+     */
+    public TCPheader(int maxDataLength) {
+        this();
+        this.fullHeader = new byte[24 + maxDataLength];
+        this.packetView = ByteBuffer.wrap(this.fullHeader);
+        this.packetLength = 24;
+    }
+
     public TCPheader(int byteSequenceNumber, int acknowledgmentNumber, long timestamp, int dataLength, int SYN, int FIN, int ACK, byte[] data) {
+        this(byteSequenceNumber, acknowledgmentNumber, timestamp, dataLength, SYN, FIN, ACK, data, null);
+    }
+
+    /**
+     * Build a packet that carries options, only a packet without data can carry them.
+     * @param options option bytes from TCPoptions, null for none
+     */
+    public TCPheader(int byteSequenceNumber, int acknowledgmentNumber, long timestamp, int dataLength, int SYN, int FIN, int ACK, byte[] data, byte[] options) {
         
         // Initialize the TCP header fields
         this.byteSequenceNumber = byteSequenceNumber;
@@ -38,6 +64,11 @@ public class TCPheader {
         this.FIN = FIN;
         this.ACK = ACK;
         this.data = data;
+        this.options = options == null ? new byte[0] : options;
+        this.optionsLength = this.options.length;
+        if (this.optionsLength > 0 && data.length > 0) {
+            throw new IllegalArgumentException("Only a packet without data can carry options");
+        }
 
         // Store the header fields in a byte array
         buildHeaderStart();
@@ -52,39 +83,112 @@ public class TCPheader {
 
     // Use this for parsing a received TCP header
     public boolean parseReceivedTCP(byte[] fullHeader) {
-        // Set the data passed in
-        this.fullHeader = fullHeader;
-        
+        return parseReceivedTCP(fullHeader, fullHeader.length);
+    }
+
+    /**
+     * Parse a received packet in place, the header becomes a view over the receive buffer.
+     * The fields are read and the checksum validated once here, the data is not copied out of the buffer.
+     * @param packet receive buffer
+     * @param length number of bytes received into the buffer
+     * @return false if the packet is too short for its header, options and data length
+     */
+    public boolean parseReceivedTCP(byte[] packet, int length) {
+        // Set the data passed in, the view is only rebuilt when the buffer changes
+        if (this.fullHeader != packet || this.packetView == null) {
+            this.fullHeader = packet;
+            this.packetView = ByteBuffer.wrap(packet);
+        }
+        this.packetLength = length;
+        this.data = new byte[0];
+        this.options = new byte[0];
+        this.optionsLength = 0;
+
+        if (length < 24) {
+            this.checksumValid = false;
+            return false;
+        }
+
         // Parse the received TCP header
-        this.byteSequenceNumber = convertByteToInt(fullHeader, 0);
-        this.acknowledgmentNumber = convertByteToInt(fullHeader, 4);
-        this.timestamp = convertByteToLong(fullHeader, 8);
-        this.dataLength = (convertByteToInt(fullHeader, 16) >> 3);
-        this.SYN = (convertByteToInt(fullHeader, 16) >> 2) & 0x1;
-        this.FIN = (convertByteToInt(fullHeader, 16) >> 1) & 0x1;
-        this.ACK = convertByteToInt(fullHeader, 16) & 0x1;
-        
-        if (this.dataLength > 0) {
-            this.data = new byte[this.dataLength];
-            System.arraycopy(fullHeader, 24, this.data, 0, this.dataLength);
-        } else {
-            this.data = new byte[0];
+        int lengthStatus = this.packetView.getInt(16);
+        this.byteSequenceNumber = this.packetView.getInt(0);
+        this.acknowledgmentNumber = this.packetView.getInt(4);
+        this.timestamp = this.packetView.getLong(8);
+        this.dataLength = lengthStatus >>> 3;
+        this.SYN = (lengthStatus >> 2) & 0x1;
+        this.FIN = (lengthStatus >> 1) & 0x1;
+        this.ACK = lengthStatus & 0x1;
+        this.optionsLength = this.packetView.getShort(20) & 0xFFFF;
+
+        // Options are only carried by packets without data, so data always starts at offset 24
+        if (this.dataLength > length - 24 || this.optionsLength > length - 24 || (this.optionsLength > 0 && this.dataLength > 0)) {
+            this.checksumValid = false;
+            return false;
         }
-        
+
+        // Validate the checksum over the bytes that were received
+        validateChecksum();
+
         // Print the parsed header fields
         // this.printData();
 
         return true;
     }
 
+    /**
+     * Get the data of the packet without copying it.
+     * @return a read only view of the data bytes, backed by the packet buffer
+     */
+    public ByteBuffer getPayload() {
+        // Data and options are never in the same packet
+        return this.packetView.asReadOnlyBuffer().position(24).limit(24 + this.dataLength).slice();
+    }
+
     public byte[] returnFullHeader(){
         return this.fullHeader;
     }
 
+    public int getPacketLength() {
+        return this.packetLength;
+    }
+
+    /**
+     * Get the reusable view over the packet buffer, only available for headers built with a maximum data length.
+     */
+    public ByteBuffer getPacketView() {
+        return this.packetView;
+    }
+
+    /**
+     * Encode the header fields in place for data that is already in the buffer at offset 24.
+     * Fields are written with absolute puts so no arrays are created for a packet.
+     */
+    public void encodeHeader(int byteSequenceNumber, int acknowledgmentNumber, long timestamp, int dataLength, int SYN, int FIN, int ACK) {
+        this.byteSequenceNumber = byteSequenceNumber;
+        this.acknowledgmentNumber = acknowledgmentNumber;
+        this.timestamp = timestamp;
+        this.dataLength = dataLength;
+        this.SYN = SYN;
+        this.FIN = FIN;
+        this.ACK = ACK;
+        this.optionsLength = 0;
+        this.packetLength = 24 + dataLength;
+
+        this.packetView.putInt(0, byteSequenceNumber);
+        this.packetView.putInt(4, acknowledgmentNumber);
+        this.packetView.putLong(8, timestamp);
+        this.packetView.putInt(16, (dataLength << 3) | (SYN & 0x1) << 2 | (FIN & 0x1) << 1 | (ACK & 0x1));
+        this.packetView.putShort(20, (short) 0); // No options
+        this.packetView.putShort(22, (short) 0); // Checksum is 0 while it is calculated
+        this.packetView.putShort(22, (short) computeChecksum());
+    }
+
     private void buildHeaderStart() {
         // Create a byte array to hold the full header
-        int totalLength = this.data.length + 24;
+        int totalLength = this.data.length + this.optionsLength + 24;
         this.fullHeader = new byte[totalLength];
+        this.packetLength = totalLength;
+        this.packetView = ByteBuffer.wrap(this.fullHeader);
         // Set the byte sequence number
         byte[] byteSequenceNumberArray = convertIntToByte(this.byteSequenceNumber);
         System.arraycopy(byteSequenceNumberArray, 0, this.fullHeader, 0, byteSequenceNumberArray.length);
@@ -96,15 +200,15 @@ public class TCPheader {
         System.arraycopy(timestampArray, 0, this.fullHeader, 8, timestampArray.length);
         // Set the data length and statuses
         setLengthAndStatus();
-        // Add 2 bytes of padding
-        byte[] padding = new byte[2];
-        padding = convertShortToByte((short) 0);
-        System.arraycopy(padding, 0, this.fullHeader, 20, padding.length);
+        // Set the number of option bytes, this was 2 bytes of padding before options
+        byte[] optionsLengthArray = convertShortToByte((short) this.optionsLength);
+        System.arraycopy(optionsLengthArray, 0, this.fullHeader, 20, optionsLengthArray.length);
         // Set the checksum to 0
         byte[] checksumArray = convertShortToByte((short) 0);
         System.arraycopy(checksumArray, 0, this.fullHeader, 22, checksumArray.length);
-        // Set the data
-        System.arraycopy(this.data, 0, this.fullHeader, 24, this.data.length);
+        // Set the options, then the data
+        System.arraycopy(this.options, 0, this.fullHeader, 24, this.optionsLength);
+        System.arraycopy(this.data, 0, this.fullHeader, 24 + this.optionsLength, this.data.length);
         // Calculate the checksum -- also updates the checksum within the header
         checksumArray = calculateChecksum();
         System.arraycopy(checksumArray, 0, this.fullHeader, 22, checksumArray.length);
@@ -123,21 +227,14 @@ public class TCPheader {
 
     public void resetChecksumAndTimestamp() {
         // Reset the timestamp to now in nanoseconds
+        long previousTimestamp = this.packetView.getLong(8);
         this.timestamp = System.nanoTime();
         // Set the timestamp
-        byte[] timestampArray = convertLongToByte(this.timestamp);
-        System.arraycopy(timestampArray, 0, this.fullHeader, 8, timestampArray.length);
+        this.packetView.putLong(8, this.timestamp);
 
-        // Reset the checksum to 0
-        this.checksum = new byte[2];
-        this.checksum[0] = 0;
-        this.checksum[1] = 0;
-        // Set the checksum in the full header
-        System.arraycopy(this.checksum, 0, this.fullHeader, 22, this.checksum.length);
-        // Calculate the checksum
-        this.checksum = calculateChecksum();
-        // Set the checksum in the full header
-        System.arraycopy(this.checksum, 0, this.fullHeader, 22, this.checksum.length);
+        // Only the timestamp changed, so update the checksum from the old and new timestamp instead of summing the whole packet
+        int previousChecksum = this.packetView.getShort(22) & 0xFFFF;
+        this.packetView.putShort(22, (short) TCPchecksum.updateLong(previousChecksum, previousTimestamp, this.timestamp));
     }
 
     /**  
@@ -148,85 +245,31 @@ public class TCPheader {
      * The checksum return the complement checksum if this is a initial calculation.
      */
     public byte[] calculateChecksum() {
-        
-        // Set the checksum bytes to 0
-        short checksumArray1 = 0;
-        short checksumArray2 = 0;
-
-        // Needed initializations
-        short byte1 = 0;
-        short byte2 = 0;
-
-        // loop over 16 bits of the header data, 2 bytes at a time
-        // if there are less than 2 bytes left, pad with 0s
-        for (int i = 0; i < this.fullHeader.length; i += 2) {
-            // Get the second byte first
-            if (i + 1 < this.fullHeader.length) {
-                // Get the second byte
-                byte2 = (short) this.fullHeader[i + 1];
-                byte2 &= 0x00FF; // Mask to get the last 8 bits
-            } else {
-                // Pad with 0s
-                byte2 = 0;
-            }
-
-            // Add byte2 and checksumArray2
-            checksumArray2 += byte2;
-
-            // Check for overflow
-            if (checksumArray2 > 0x00FF) {
-                checksumArray1 += (checksumArray2 & 0xFF00) >>> 8;
-                checksumArray2 &= 0x00FF;
-            } 
-            
-            // Get the first byte
-            byte1 = (short) this.fullHeader[i];
-            byte1 &= 0x00FF; // Mask to get the last 8 bits
-
-            // Add byte1 and checksumArray1
-            checksumArray1 += byte1;
-
-            // Check for overflow
-            if (checksumArray1 > 0x00FF) {
-                checksumArray2 += (checksumArray1 & 0xFF00) >>> 8;
-                checksumArray1 &= 0x00FF;
-            } 
-        }
+        int complementCheckSum = computeChecksum();
 
-        // Check if there is overflow in checksumArray2
-        if (checksumArray2 > 0x00FF) {
-            checksumArray1 += (checksumArray2 & 0xFF00) >>> 8;
-            checksumArray2 &= 0x00FF;
-        }
-        // Check if there is overflow in checksumArray1
-        if (checksumArray1 > 0x00FF) {
-            checksumArray2 += (checksumArray1 & 0xFF00) >>> 8;
-            checksumArray1 &= 0x00FF;
-        }
-
-        // Combine the two checksums, 1 is the high bytes and 2 is the low bytes
         // Convert the checksum to a byte array
-        byte[] complementCheckSum = new byte[2];
-        complementCheckSum[0] = (byte) (~checksumArray1);
-        complementCheckSum[1] = (byte) (~checksumArray2);
+        this.checksum = new byte[2];
+        this.checksum[0] = (byte) (complementCheckSum >>> 8);
+        this.checksum[1] = (byte) complementCheckSum;
 
-        
-        this.checksum = complementCheckSum;
-        
         // Return the computated value
-        return complementCheckSum;
-        
+        return this.checksum;
+    }
 
+    /**
+     * Calculate the checksum of the TCP header without creating an array.
+     * @return the complement checksum in the low 16 bits
+     */
+    private int computeChecksum() {
+        return TCPchecksum.calculate(this.fullHeader, this.packetLength);
     }
 
     /**
      * Validate the checksum
      */
     public boolean validateChecksum() {
-        // Calculate the checksum
-        byte[] calculatedChecksum = calculateChecksum();
-        // Check if the checksum is valid
-        if (calculatedChecksum[0] == 0 && calculatedChecksum[1] == 0) {
+        // Calculate the checksum, a valid packet including its checksum sums to 0
+        if (computeChecksum() == 0) {
             this.checksumValid = true;
             return true;
         } else {
@@ -307,14 +350,19 @@ public class TCPheader {
      */
     public void printData() {
         // Print the parsed header fields
-        System.out.println("Byte Sequence Number: " + this.byteSequenceNumber);
-        System.out.println("Acknowledgment Number: " + this.acknowledgmentNumber);
+        System.out.println("Byte Sequence Number: " + TCPsequence.unsigned(this.byteSequenceNumber));
+        System.out.println("Acknowledgment Number: " + TCPsequence.unsigned(this.acknowledgmentNumber));
         System.out.println("Timestamp: " + this.timestamp);
         System.out.println("Data Length: " + this.dataLength);
         System.out.println("SYN: " + this.SYN);
         System.out.println("FIN: " + this.FIN);
         System.out.println("ACK: " + this.ACK);
-        System.out.println("Data: " + new String(this.data));
+        if (this.data.length == 0 && this.dataLength > 0) {
+            // Data of a reused buffer is only held in the packet
+            System.out.println("Data: " + new String(this.fullHeader, 24, Math.min(this.dataLength, this.packetLength - 24)));
+        } else {
+            System.out.println("Data: " + new String(this.data));
+        }
     }
 
 }
\ No newline at end of file
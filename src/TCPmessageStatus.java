@@ -1,4 +1,5 @@
 import java.lang.StringBuilder;
+import java.nio.ByteBuffer;
 
 
 public class TCPmessageStatus {
@@ -18,18 +19,18 @@ public class TCPmessageStatus {
     public TCPheader message;
     public int sendAttempts;
 
+    // Retransmission timer, the message is linked into a slot of the sender's TCPtimerWheel while it runs
+    public TCPmessageStatus timerNext;
+    public TCPmessageStatus timerPrev;
+    public long timerDeadline;
+    public int timerSlot = -1; // -1 when the timer is not running
+
     /**
      * Generates a message to start with
      */
     public TCPmessageStatus(int byteSequenceNumber, int acknowledgmentNumber) {
-        
-        // Verify the parameters
-        if (byteSequenceNumber < 0) {
-            throw new IllegalArgumentException("byteSequenceNumber must be greater than or equal to 0");
-        }
-        if (acknowledgmentNumber < 0) {
-            throw new IllegalArgumentException("acknowledgmentNumber must be greater than or equal to 0");
-        }
+
+        // Sequence numbers are 32 bit serial numbers that wrap, every value is valid
 
         // Set parameters
         this.byteSequenceNumber = byteSequenceNumber;
@@ -49,6 +50,16 @@ public class TCPmessageStatus {
      * @param byteMessage
      */
     public TCPmessageStatus(byte[] byteMessage) {
+        this(byteMessage, byteMessage == null ? 0 : byteMessage.length);
+    }
+
+    /**
+     * Process a received packet as a new instance, the message is a view over the receive buffer.
+     * The header is parsed and the checksum validated once, check message.checksumValid before using it.
+     * @param byteMessage receive buffer
+     * @param length number of bytes received into the buffer
+     */
+    public TCPmessageStatus(byte[] byteMessage, int length) {
         
         // Verify the parameters
         if (byteMessage == null) {
@@ -59,7 +70,7 @@ public class TCPmessageStatus {
         TCPheader message = new TCPheader();
         
         // Parse the header
-        if (message.parseReceivedTCP(byteMessage) == false) {
+        if (message.parseReceivedTCP(byteMessage, length) == false) {
             throw new IllegalArgumentException("Message corrupted or invalid.");
         }
 
@@ -85,6 +96,15 @@ public class TCPmessageStatus {
      * @return byte array with the sender startup message
      */
     public void setDatalessMessage(int eSYN, int eFIN, int eACK, long timestamp) {
+        setDatalessMessage(eSYN, eFIN, eACK, timestamp, null);
+    }
+
+    /**
+     * Set up a message without data that carries options
+     * SYN, FIN, ACK should be 0 or 1
+     * @param options option bytes from TCPoptions, null for none
+     */
+    public void setDatalessMessage(int eSYN, int eFIN, int eACK, long timestamp, byte[] options) {
         
         // Verify the parameters
         if (eSYN < 0 || eSYN > 1) {
@@ -109,7 +129,7 @@ public class TCPmessageStatus {
         byte[] blankData = new byte[0];
 
         // Generate a TCP message with the data
-        TCPheader message = new TCPheader(byteSequenceNumber,acknowledgmentNumber,timestamp,0,eSYN,eFIN,eACK,blankData);
+        TCPheader message = new TCPheader(byteSequenceNumber,acknowledgmentNumber,timestamp,0,eSYN,eFIN,eACK,blankData,options);
         this.message = message;
         this.dataLength = 0;
         this.containsData = false;
@@ -144,6 +164,48 @@ public class TCPmessageStatus {
     }
 
 
+    /**
+     * Returns the packet buffer of a reusable data message so data can be read straight into it at offset 24.
+     * The buffer is created the first time with room for maxDataLength bytes of data and kept after that.
+     * @param maxDataLength
+     * @return view over the whole packet buffer
+     */
+    public ByteBuffer getPacketBuffer(int maxDataLength) {
+        if (this.message == null || this.message.getPacketView() == null || this.message.fullHeader.length < 24 + maxDataLength) {
+            this.message = new TCPheader(maxDataLength);
+        }
+        return this.message.getPacketView();
+    }
+
+    /**
+     * Set up a data message whose data was already written into the packet buffer from getPacketBuffer.
+     * Nothing is allocated, so a message can be reused for every segment that passes through its slot.
+     * @param byteSqnNum
+     * @param ackNum
+     * @param dataLength number of data bytes at offset 24 of the packet buffer
+     */
+    public void setDataMessage(int byteSqnNum, int ackNum, int dataLength) {
+
+        // Set parameters
+        this.SYN = 0;
+        this.FIN = 0;
+        this.ACK = 1;
+        this.byteSequenceNumber = byteSqnNum;
+        this.acknowledgmentNumber = ackNum;
+        this.dataLength = dataLength;
+        this.containsData = true;
+        this.sent = true;
+        this.received = false;
+        this.acknowledged = false;
+        this.sendAttempts = 0;
+
+        // Get time stamp in nanoseconds
+        this.timestamp = System.nanoTime();
+
+        // Encode the header in front of the data
+        this.message.encodeHeader(byteSqnNum, ackNum, this.timestamp, dataLength, this.SYN, this.FIN, this.ACK);
+    }
+
     /**
      * Reset the timestamp and the checksum on the message
      */
@@ -182,6 +244,55 @@ public class TCPmessageStatus {
         return this.message.returnFullHeader();
     }
 
+    /**
+     * Check if the message carries an option
+     * @param kind option kind from TCPoptions
+     */
+    public boolean hasOption(int kind) {
+        return TCPoptions.find(this.message.fullHeader, this.message.optionsLength, kind) >= 0;
+    }
+
+    /**
+     * Read the SACK blocks of the message
+     * @param blocks filled with the start and end of each block, needs room for 2 * TCPoptions.MAX_SACK_BLOCKS values
+     * @return number of blocks
+     */
+    public int getSackBlocks(int[] blocks) {
+        return TCPoptions.readSack(this.message.fullHeader, this.message.optionsLength, blocks);
+    }
+
+    /**
+     * Read the maximum segment size option of the message
+     * @return most data bytes the sender takes in a segment, -1 if the message carries no MSS option
+     */
+    public int getMss() {
+        return TCPoptions.readShort(this.message.fullHeader, this.message.optionsLength, TCPoptions.MSS);
+    }
+
+    /**
+     * Read the probe option of the message
+     * @return size of the datagram probed, -1 if the message is not a probe or the answer to one
+     */
+    public int getProbe() {
+        return TCPoptions.readShort(this.message.fullHeader, this.message.optionsLength, TCPoptions.PROBE);
+    }
+
+    /**
+     * Read the stripe option of the message
+     * @param stripe filled with the offset, length, index and count of the range, needs room for 4 values
+     * @return false if the message carries no stripe option
+     */
+    public boolean getStripe(long[] stripe) {
+        return TCPoptions.readStripe(this.message.fullHeader, this.message.optionsLength, stripe);
+    }
+
+    /**
+     * Returns the number of bytes at the start of getMessage that make up the packet
+     */
+    public int getMessageLength() {
+        return this.message.getPacketLength();
+    }
+
     /**
      * Parses a byte array to get the message
      * @param data byte array with the data
@@ -221,8 +332,8 @@ public class TCPmessageStatus {
             return null;
         }
 
-        // Return the byte array
-        return message1.data;
+        // Return a copy of the data, the parsed header only views it in the buffer
+        return java.util.Arrays.copyOfRange(data, 24, 24 + message1.dataLength);
     }
 
     /**
@@ -235,8 +346,8 @@ public class TCPmessageStatus {
      */
     public boolean verifyMessage(int expectedByteSequenceNumber, int expectedAcknowledgmentNumber, int eSYN, int eFIN, int eACK) {
         
-        // Confirm the checksum is correct
-        if (this.message.validateChecksum() == false) {
+        // Confirm the checksum is correct, it was validated when the message was parsed or built
+        if (this.message.checksumValid == false) {
             System.out.println("Checksum error.");
             return false;
         }
@@ -262,61 +373,28 @@ public class TCPmessageStatus {
         return true;
     }
 
+    /**
+     * Verify only the flags of the TCP message, for messages whose checksum was already validated on receipt
+     * @param eSYN
+     * @param eFIN
+     * @param eACK
+     */
+    public boolean verifyFlags(int eSYN, int eFIN, int eACK) {
+        return eSYN == this.SYN && eFIN == this.FIN && eACK == this.ACK;
+    }
+
     /**
      * Print the message details
      */
     public void printMessageDetails(long timeSinceStartUp) {
-        // Should be a single string that will be built up based on parameters
-        // Initialize empty string
+        // Build the one line of details, TCPeventLog prints the same format from its background thread
         StringBuilder messageDetails = new StringBuilder();
-
-        // Add the detail of sent or received
-        if (this.sent) {
-            messageDetails.append("snd ");
-        } else if (this.received) {
-            messageDetails.append("rcv ");
-        } else {
-            messageDetails.append("N/A ");
-        }
-
-        // Add the time since startup, should be a float with 3 decimal places
-        messageDetails.append(String.format("%4.3f ", timeSinceStartUp / 1000000000.0));
-
-        // Add the flag for SYN
-        if (this.SYN == 1) {
-            messageDetails.append("S ");
-        } else {
-            messageDetails.append("- ");
-        }
-        // Add the flag for ACK
-        if (this.ACK == 1) {
-            messageDetails.append("A ");
-        } else {
-            messageDetails.append("- ");
-        }
-        // Add the flag for FIN
-        if (this.FIN == 1) {
-            messageDetails.append("F ");
-        } else {
-            messageDetails.append("- ");
-        }
-        // Add the flag for Data
-        if (this.containsData) {
-            messageDetails.append("D ");
-        } else {
-            messageDetails.append("- ");
-        }
-
-        // Add the byte sequence number
-        messageDetails.append(String.format("%d ", this.byteSequenceNumber));
-        // Add the number of bytes in the data
-        messageDetails.append(String.format("%d ", this.dataLength));
-        // Add the acknowledgment number
-        messageDetails.append(String.format("%d ", this.acknowledgmentNumber));
+        TCPeventLog.appendDetails(messageDetails, this.sent, this.received, timeSinceStartUp,
+            this.SYN == 1, this.ACK == 1, this.FIN == 1, this.containsData,
+            this.byteSequenceNumber, this.dataLength, this.acknowledgmentNumber);
 
         // Print the one line of details
         System.out.println(messageDetails.toString());
-
     }
     
 }
\ No newline at end of file
@@ -0,0 +1,58 @@
+/**
+ * NewReno congestion control (RFC 5681, RFC 6582), the window growth the sender always had.
+ * -- Slow start: below the slow start threshold the window grows by one segment for every segment acknowledged, doubling every round trip.
+ * -- Congestion avoidance: at or above it the window grows by one segment once a whole window has been acknowledged.
+ * -- Fast recovery halves the window, a timeout drops it to one segment and slow start runs again up to half the window.
+ * The window does not grow while the sender is in fast recovery.
+ */
+public class TCPnewReno implements TCPcongestionControl {
+
+    private int maxWindow;
+    private int window; // Segments that may be in flight
+    private int slowStartThreshold; // Slow start runs while the window is below this
+    private int ackedSinceGrowth; // Segments acknowledged since the window last grew in congestion avoidance
+
+    public TCPnewReno(int maxWindow) {
+        this.maxWindow = maxWindow;
+        this.window = 1;
+        this.slowStartThreshold = maxWindow;
+        this.ackedSinceGrowth = 0;
+    }
+
+    public void onAck(int segmentsAcked, boolean inRecovery, long now) {
+        if (inRecovery) {
+            return;
+        }
+        if (this.window < this.slowStartThreshold) {
+            this.window = Math.min(this.window + segmentsAcked, this.maxWindow);
+            return;
+        }
+        this.ackedSinceGrowth += segmentsAcked;
+        if (this.ackedSinceGrowth >= this.window) {
+            this.ackedSinceGrowth -= this.window;
+            this.window = Math.min(this.window + 1, this.maxWindow);
+        }
+    }
+
+    public void onLoss(boolean timeout, int segmentsInFlight, long now) {
+        this.slowStartThreshold = Math.max(segmentsInFlight / 2, 2);
+        this.window = timeout ? 1 : this.slowStartThreshold;
+        this.ackedSinceGrowth = 0;
+    }
+
+    public void onRtt(long rttNanos, long now) {
+        // The window only follows ACKs and losses
+    }
+
+    public int getWindow() {
+        return this.window;
+    }
+
+    public long getPacingRate() {
+        return 0;
+    }
+
+    public String getName() {
+        return "reno";
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Options carried between the 24 byte header and the data.
+ * The 2 bytes at offset 20, padding before options were added, hold the number of option bytes, so a packet from an end without options has none.
+ * -- Each option is a kind byte, a length byte counting both of them, then the value (the TCP option layout, RFC 9293).
+ * -- The kinds use the TCP numbers, an end skips kinds it doesn't know.
+ * -- Maximum segment size goes in the SYN and SYN-ACK, each end sends the most data it takes in a segment and both use the smaller one.
+ *    After a path MTU probe the client sends it again on its own to lower the segment size, the server echoes it back.
+ * -- SACK permitted goes in the SYN and SYN-ACK, SACK blocks go in an ACK once both ends sent it (RFC 2018).
+ * -- Stripe goes in the SYN of a connection that carries one byte range of a file split over several connections.
+ *    It has no TCP number, it uses 253 which is set aside for experiments (RFC 4727).
+ * -- Probe goes in a path MTU probe, a packet padded with zeros after its options to the datagram size it probes, the server echoes it back.
+ *    It uses the other kind set aside for experiments, 254.
+ * Options are limited to 40 bytes like TCP, which is room for 4 SACK blocks.
+ */
+public final class TCPoptions {
+
+    public static final int MSS = 2;
+    public static final int SACK_PERMITTED = 4;
+    public static final int SACK = 5;
+    public static final int STRIPE = 253;
+    public static final int PROBE = 254;
+
+    public static final int MAX_LENGTH = 40;
+    public static final int MAX_SACK_BLOCKS = (MAX_LENGTH - 2) / 8;
+    public static final int MSS_LENGTH = 4; // Segment size in 2 bytes
+    public static final int PROBE_LENGTH = 4; // Datagram size probed in 2 bytes
+    public static final int STRIPE_LENGTH = 22; // Offset and length of the range, 8 bytes each, then its index and the number of ranges, 2 bytes each
+
+    private TCPoptions() {
+    }
+
+    /**
+     * Build a maximum segment size option.
+     * @param segmentSize most data bytes in a segment, at most 65535
+     */
+    public static byte[] mss(int segmentSize) {
+        return new byte[] { (byte) MSS, MSS_LENGTH, (byte) (segmentSize >>> 8), (byte) segmentSize };
+    }
+
+    /**
+     * Build a path MTU probe option.
+     * @param datagramSize bytes in the probe datagram, at most 65535
+     */
+    public static byte[] probe(int datagramSize) {
+        return new byte[] { (byte) PROBE, PROBE_LENGTH, (byte) (datagramSize >>> 8), (byte) datagramSize };
+    }
+
+    /**
+     * Build the SACK permitted option for a SYN or SYN-ACK.
+     */
+    public static byte[] sackPermitted() {
+        return new byte[] { (byte) SACK_PERMITTED, 2 };
+    }
+
+    /**
+     * Build a SACK option.
+     * @param blocks start and end byte sequence numbers of each block, end is the byte after the block
+     * @param count number of blocks
+     */
+    public static byte[] sack(int[] blocks, int count) {
+        byte[] option = new byte[2 + 8 * count];
+        option[0] = (byte) SACK;
+        option[1] = (byte) option.length;
+        for (int i = 0; i < 2 * count; i++) {
+            int value = blocks[i];
+            option[2 + 4 * i] = (byte) (value >>> 24);
+            option[3 + 4 * i] = (byte) (value >>> 16);
+            option[4 + 4 * i] = (byte) (value >>> 8);
+            option[5 + 4 * i] = (byte) value;
+        }
+        return option;
+    }
+
+    /**
+     * Build a stripe option for a SYN.
+     * @param offset file offset of the first byte of the range
+     * @param length bytes in the range
+     * @param index range number, from 0
+     * @param count number of ranges the file is split into, at most 65535
+     */
+    public static byte[] stripe(long offset, long length, int index, int count) {
+        byte[] option = new byte[STRIPE_LENGTH];
+        option[0] = (byte) STRIPE;
+        option[1] = (byte) STRIPE_LENGTH;
+        for (int i = 0; i < 8; i++) {
+            option[2 + i] = (byte) (offset >>> (56 - 8 * i));
+            option[10 + i] = (byte) (length >>> (56 - 8 * i));
+        }
+        option[18] = (byte) (index >>> 8);
+        option[19] = (byte) index;
+        option[20] = (byte) (count >>> 8);
+        option[21] = (byte) count;
+        return option;
+    }
+
+    /**
+     * Put two options, or lists of options, one after the other.
+     * @param first may be null
+     * @param second may be null
+     * @return the options, null if both are null
+     */
+    public static byte[] join(byte[] first, byte[] second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        byte[] options = new byte[first.length + second.length];
+        System.arraycopy(first, 0, options, 0, first.length);
+        System.arraycopy(second, 0, options, first.length, second.length);
+        return options;
+    }
+
+    /**
+     * Find an option in a packet.
+     * @param packet
+     * @param optionsLength number of option bytes after the header
+     * @param kind
+     * @return offset of the option's kind byte in the packet, -1 if the packet doesn't carry it
+     */
+    public static int find(byte[] packet, int optionsLength, int kind) {
+        int offset = 24;
+        int end = 24 + optionsLength;
+        while (end - offset >= 2) {
+            int length = packet[offset + 1] & 0xFF;
+            if (length < 2 || offset + length > end) {
+                return -1; // Malformed, ignore the rest
+            }
+            if ((packet[offset] & 0xFF) == kind) {
+                return offset;
+            }
+            offset += length;
+        }
+        return -1;
+    }
+
+    /**
+     * Read the value of an option that holds one 2 byte number, the maximum segment size or the size of a probe.
+     * @param packet
+     * @param optionsLength number of option bytes after the header
+     * @param kind MSS or PROBE
+     * @return the value, -1 if the packet doesn't carry the option
+     */
+    public static int readShort(byte[] packet, int optionsLength, int kind) {
+        int offset = find(packet, optionsLength, kind);
+        if (offset < 0 || (packet[offset + 1] & 0xFF) != 4) {
+            return -1;
+        }
+        return (packet[offset + 2] & 0xFF) << 8 | (packet[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Read the SACK blocks of a packet.
+     * @param packet
+     * @param optionsLength number of option bytes after the header
+     * @param blocks filled with the start and end of each block, needs room for 2 * MAX_SACK_BLOCKS values
+     * @return number of blocks, 0 if the packet carries none
+     */
+    public static int readSack(byte[] packet, int optionsLength, int[] blocks) {
+        int offset = find(packet, optionsLength, SACK);
+        if (offset < 0) {
+            return 0;
+        }
+        int count = Math.min(((packet[offset + 1] & 0xFF) - 2) / 8, MAX_SACK_BLOCKS);
+        for (int i = 0; i < 2 * count; i++) {
+            int at = offset + 2 + 4 * i;
+            blocks[i] = (packet[at] & 0xFF) << 24 | (packet[at + 1] & 0xFF) << 16 | (packet[at + 2] & 0xFF) << 8 | (packet[at + 3] & 0xFF);
+        }
+        return count;
+    }
+
+    /**
+     * Read the stripe option of a packet.
+     * @param packet
+     * @param optionsLength number of option bytes after the header
+     * @param stripe filled with the offset, length, index and count of the range, needs room for 4 values
+     * @return false if the packet carries no stripe option
+     */
+    public static boolean readStripe(byte[] packet, int optionsLength, long[] stripe) {
+        int offset = find(packet, optionsLength, STRIPE);
+        if (offset < 0 || (packet[offset + 1] & 0xFF) != STRIPE_LENGTH) {
+            return false;
+        }
+        long rangeOffset = 0;
+        long rangeLength = 0;
+        for (int i = 0; i < 8; i++) {
+            rangeOffset = rangeOffset << 8 | (packet[offset + 2 + i] & 0xFF);
+            rangeLength = rangeLength << 8 | (packet[offset + 10 + i] & 0xFF);
+        }
+        stripe[0] = rangeOffset;
+        stripe[1] = rangeLength;
+        stripe[2] = (packet[offset + 18] & 0xFF) << 8 | (packet[offset + 19] & 0xFF);
+        stripe[3] = (packet[offset + 20] & 0xFF) << 8 | (packet[offset + 21] & 0xFF);
+        return true;
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Spreads the sender's segments out over the round trip instead of sending a window back to back.
+ * A whole window sent at once arrives at the receiver as a burst that can overflow its socket buffer, paced segments arrive evenly.
+ * -- The rate is the congestion controller's pacing rate, or the window divided by the smoothed round trip time if it has none.
+ * -- A token bucket holds up to burst segments worth of bytes, so a few segments can still go out together after a quiet spell.
+ * -- Retransmissions are never held back, but they use up tokens like any other segment.
+ * -- Rates and tokens count payload bytes, the unit the controllers' rates are in, so headers don't slow the pacing below the rate.
+ * The sender asks getReleaseTime before each new segment and waits on its receive until then when it is in the future.
+ */
+public class TCPpacer {
+
+    private int bucketSize; // Most bytes that can be sent back to back
+    private long rate; // Bytes per second, 0 until there is a round trip time to pace over
+    private double tokens; // Bytes that can be sent now
+    private long lastRefill; // nanoTime the tokens were last topped up
+
+    /**
+     * @param burstSegments segments the bucket holds, at least 1
+     * @param segmentSize bytes in a full segment
+     */
+    public TCPpacer(int burstSegments, int segmentSize) {
+        this.bucketSize = burstSegments * segmentSize;
+        this.tokens = this.bucketSize;
+        this.rate = 0;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Set the rate segments are released at.
+     * @param bytesPerSecond payload bytes per second, 0 sends without pacing
+     */
+    public void setRate(long bytesPerSecond, long now) {
+        refill(now);
+        this.rate = bytesPerSecond;
+    }
+
+    /**
+     * Get the time a segment can be sent.
+     * @param bytes payload of the segment
+     * @param now nanoTime
+     * @return now if it can be sent straight away, otherwise the nanoTime there will be enough tokens
+     */
+    public long getReleaseTime(int bytes, long now) {
+        if (this.rate == 0) {
+            return now;
+        }
+        refill(now);
+        // A segment larger than the bucket goes once the bucket is full
+        double needed = Math.min(bytes, this.bucketSize) - this.tokens;
+        if (needed <= 0) {
+            return now;
+        }
+        return now + (long) Math.ceil(needed * 1e9 / this.rate);
+    }
+
+    /**
+     * Take the tokens for a segment that was sent, the bucket can go below 0 for a retransmission.
+     * @param bytes payload of the segment
+     * @param now nanoTime
+     */
+    public void onSend(int bytes, long now) {
+        refill(now);
+        this.tokens -= bytes;
+    }
+
+    public long getRate() {
+        return this.rate;
+    }
+
+    private void refill(long now) {
+        if (this.rate == 0) {
+            // Not pacing, the bucket stays full
+            this.tokens = this.bucketSize;
+        } else {
+            this.tokens = Math.min(this.bucketSize, this.tokens + (now - this.lastRefill) * (double) this.rate / 1e9);
+        }
+        this.lastRefill = now;
+    }
+}
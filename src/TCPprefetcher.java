@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads the sender's file ahead of the send loop on a thread of its own, so a slow disk read doesn't hold up ACKs and retransmission timers.
+ * -- The reader thread reads chunks into a ring of buffers a few windows deep, the send loop copies them into its packets in order.
+ * -- One thread puts and one thread takes, so the ring needs no lock: each side only writes its own index and reads the other's.
+ *    A chunk is published by moving the tail past it after it was read, and handed back by moving the head past it after it was copied.
+ * -- The reader parks while the ring is full, the send loop wakes it once a quarter of the ring is free, so it reads in batches
+ *    rather than being woken for every chunk.
+ * -- The send loop never waits on the disk, when the ring is empty it goes back to its ACKs and timers and asks again shortly.
+ * The depth of the ring when the send loop takes a chunk, how often it found the ring empty and how long the reader waited are kept as metrics.
+ */
+public class TCPprefetcher implements Runnable {
+
+    private static final long MAX_BYTES = 32 * 1024 * 1024; // Most memory the ring of a connection takes, however large its window
+    private static final long PARK_NANOS = 10 * 1000000L; // Longest the reader parks on a full ring before it checks again
+
+    private TCPfileHandling fileHandler;
+    private byte[][] chunks; // Ring of chunk buffers, indexed by chunk number modulo their count
+    private ByteBuffer[] chunkViews; // View over each chunk buffer for the file reads
+    private int[] lengths; // Bytes read into each chunk buffer
+    private int mask; // Chunk buffers - 1, the number of buffers is a power of 2
+    private int refillBatch; // Free chunk buffers that make the send loop wake the reader
+    private Thread reader;
+
+    private volatile long head; // Next chunk the send loop takes, only written by the send loop
+    private volatile long tail; // Next chunk the reader fills, only written by the reader
+    private volatile boolean finished; // The reader has stopped, at the end of the file or on a read error, no chunk past tail will come
+    private volatile boolean readerParked; // The reader is parked, or about to park, on a full ring
+    private volatile boolean closed;
+    private IOException failure; // Read error that stopped the reader, published by finished
+
+    // Metrics, the first three are only written by the send loop, the last two by the reader
+    private long chunksTaken;
+    private long depthTotal; // Chunks ready in the ring each time one was taken, summed
+    private long emptyTakes; // Times the send loop wanted a chunk and the ring was empty
+    private volatile long readerWaitNanos; // Time the reader spent parked on a full ring
+    private volatile long readNanos; // Time the reader spent in file reads
+
+    /**
+     * @param fileHandler file to read, from the reader thread only once start is called
+     * @param chunkCount chunks the ring holds, rounded up to a power of 2 and held to 32 MB of chunks
+     * @param chunkSize largest chunk the file handler reads
+     */
+    public TCPprefetcher(TCPfileHandling fileHandler, int chunkCount, int chunkSize) {
+        int count = 2;
+        while (count < chunkCount && (long) count * 2 * chunkSize <= MAX_BYTES) {
+            count *= 2;
+        }
+        this.fileHandler = fileHandler;
+        this.chunks = new byte[count][chunkSize];
+        this.chunkViews = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            this.chunkViews[i] = ByteBuffer.wrap(this.chunks[i]);
+        }
+        this.lengths = new int[count];
+        this.mask = count - 1;
+        this.refillBatch = Math.max(count / 4, 1);
+    }
+
+    /**
+     * Start reading ahead.
+     */
+    public void start() {
+        this.reader = new Thread(this, "prefetch");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    /**
+     * The reader thread, fills the ring until the file is read.
+     */
+    @Override
+    public void run() {
+        try {
+            while (this.closed == false) {
+                long nextTail = this.tail;
+                // Wait for the send loop to take a chunk, checking the head again after flagging so a take in between isn't missed
+                if (nextTail - this.head > this.mask) {
+                    this.readerParked = true;
+                    if (nextTail - this.head > this.mask && this.closed == false) {
+                        long parkedAt = System.nanoTime();
+                        LockSupport.parkNanos(this, PARK_NANOS);
+                        this.readerWaitNanos += System.nanoTime() - parkedAt;
+                    }
+                    this.readerParked = false;
+                    continue;
+                }
+                int slot = (int) (nextTail & this.mask);
+                long readAt = System.nanoTime();
+                int length = this.fileHandler.readNextChunk(this.chunkViews[slot], 0);
+                this.readNanos += System.nanoTime() - readAt;
+                if (length < 0) {
+                    break;
+                }
+                this.lengths[slot] = length;
+                // Publish the chunk
+                this.tail = nextTail + 1;
+            }
+        } catch (IOException e) {
+            this.failure = e;
+        } finally {
+            this.finished = true;
+        }
+    }
+
+    /**
+     * Copy the next chunk into a buffer, only called from the send loop.
+     * @param destination buffer to copy into
+     * @param offset position in the buffer where the chunk starts
+     * @return number of bytes copied, 0 if the next chunk hasn't been read yet, -1 once the file is read or a read failed
+     * @throws IOException the error that stopped the reader
+     */
+    public int take(ByteBuffer destination, int offset) throws IOException {
+        long nextHead = this.head;
+        long ready = this.tail - nextHead;
+        if (ready == 0) {
+            // The reader sets finished after its last chunk was published, so the tail is read again after it
+            if (this.finished && this.tail == nextHead) {
+                if (this.failure != null) {
+                    throw this.failure;
+                }
+                return -1;
+            }
+            this.emptyTakes++;
+            return 0;
+        }
+        int slot = (int) (nextHead & this.mask);
+        int length = this.lengths[slot];
+        destination.limit(offset + length);
+        destination.position(offset);
+        destination.put(this.chunks[slot], 0, length);
+        destination.clear();
+        this.chunksTaken++;
+        this.depthTotal += ready;
+        // Hand the buffer back to the reader, waking it once there is a batch to read
+        this.head = nextHead + 1;
+        if (this.readerParked && this.mask + 2 - ready >= this.refillBatch) {
+            LockSupport.unpark(this.reader);
+        }
+        return length;
+    }
+
+    /**
+     * Stop the reader and wait for it, the file handler can be closed after.
+     */
+    public void close() {
+        this.closed = true;
+        if (this.reader != null) {
+            LockSupport.unpark(this.reader);
+            try {
+                this.reader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Chunks the ring holds
+    public int getCapacity() {
+        return this.mask + 1;
+    }
+
+    // Chunks ready in the ring each time the send loop took one, on average
+    public double getAverageDepth() {
+        return this.chunksTaken == 0 ? 0 : (double) this.depthTotal / this.chunksTaken;
+    }
+
+    // Times the send loop wanted a chunk and the ring was empty
+    public long getEmptyTakes() {
+        return this.emptyTakes;
+    }
+
+    // Time the reader spent parked on a full ring, in nanoseconds
+    public long getReaderWaitNanos() {
+        return this.readerWaitNanos;
+    }
+
+    // Time the reader spent in file reads, in nanoseconds
+    public long getReadNanos() {
+        return this.readNanos;
+    }
+}
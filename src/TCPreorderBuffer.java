@@ -0,0 +1,189 @@
+/**
+ * This class holds the segments the receiver got ahead of the next expected byte, until the gap before them is filled.
+ * It is a ring buffer indexed by byte sequence number rather than a sorted list that has to be searched.
+ * -- Every segment except the last one of the file carries exactly segmentSize bytes.
+ * -- The next expected byte is in headSlot, a segment starting at byte sequence number S is (S - headSequence) / segmentSize slots after it.
+ * -- The offset is taken from the next expected byte rather than from byte 1, so it stays right when the sequence number wraps past 2^32.
+ * The window covers capacity segments from the next expected byte, so two segments in the window never share a slot.
+ * A segment inside the window always has a slot and is never dropped, only a segment past the window is refused.
+ * The runs of held segments are what the receiver reports in SACK blocks.
+ */
+public class TCPreorderBuffer {
+
+    private TCPmessageStatus[] slots;
+    private int capacity;
+    private int segmentSize;
+    private int headSlot; // Slot of the next expected byte
+    private int headSequence; // Next expected byte the slots were last lined up with
+    private int size; // Number of segments held
+    private int lastAdded; // Byte sequence number of the segment added most recently
+
+    public TCPreorderBuffer(int capacity, int segmentSize) {
+        this.capacity = capacity;
+        this.segmentSize = segmentSize;
+        this.slots = new TCPmessageStatus[capacity];
+        this.headSlot = 0;
+        this.headSequence = 1; // Data starts at byte 1
+        this.size = 0;
+    }
+
+    /**
+     * Hold a segment that arrived ahead of the next expected byte.
+     * @param message data segment
+     * @param nextExpectedByte
+     * @return false if the segment is not in the window, not on a segment boundary or already held
+     */
+    public boolean add(TCPmessageStatus message, int nextExpectedByte) {
+        advanceTo(nextExpectedByte);
+        if (!inWindow(message.byteSequenceNumber, nextExpectedByte)) {
+            return false;
+        }
+        int slot = slotOf(message.byteSequenceNumber);
+        if (this.slots[slot] != null) {
+            return false; // Already held
+        }
+        this.slots[slot] = message;
+        this.size++;
+        this.lastAdded = message.byteSequenceNumber;
+        return true;
+    }
+
+    /**
+     * Check if a segment is already held.
+     * @param byteSequenceNumber
+     */
+    public boolean contains(int byteSequenceNumber) {
+        if (!inWindow(byteSequenceNumber, this.headSequence)) {
+            return false;
+        }
+        TCPmessageStatus message = this.slots[slotOf(byteSequenceNumber)];
+        return message != null && message.byteSequenceNumber == byteSequenceNumber;
+    }
+
+    /**
+     * Take the segment that starts at the next expected byte out of the buffer.
+     * @param nextExpectedByte
+     * @return the segment or null if it hasn't arrived yet
+     */
+    public TCPmessageStatus poll(int nextExpectedByte) {
+        advanceTo(nextExpectedByte);
+        TCPmessageStatus message = this.slots[this.headSlot];
+        if (message == null || message.byteSequenceNumber != nextExpectedByte) {
+            return null;
+        }
+        this.slots[this.headSlot] = null;
+        this.size--;
+        return message;
+    }
+
+    /**
+     * Check if a segment can be held, it has to start on a segment boundary less than capacity segments past the next expected byte.
+     * @param byteSequenceNumber
+     * @param nextExpectedByte
+     */
+    public boolean inWindow(int byteSequenceNumber, int nextExpectedByte) {
+        int offset = TCPsequence.distance(nextExpectedByte, byteSequenceNumber);
+        return offset > 0
+            && offset % this.segmentSize == 0
+            && offset / this.segmentSize < this.capacity;
+    }
+
+    /**
+     * Report the runs of held segments as SACK blocks, each block is the start and the end (the byte after it) of a run.
+     * The block holding the segment added most recently comes first, the others follow from the lowest (RFC 2018),
+     * so every segment is reported at least once even when there are more runs than blocks.
+     * @param blocks filled with the start and end of each block, needs room for 2 * maxBlocks values
+     * @param maxBlocks
+     * @return number of blocks
+     */
+    public int sackBlocks(int[] blocks, int maxBlocks) {
+        int count = 0;
+        int latest = -1; // Block holding the segment added most recently
+        int runStart = 0;
+        int runEnd = 0;
+        boolean inRun = false;
+
+        // The slot of the next expected byte is always empty, the runs start after it, one step past the window ends the last run
+        for (int offset = 1; offset <= this.capacity; offset++) {
+            TCPmessageStatus message = offset < this.capacity ? this.slots[(this.headSlot + offset) % this.capacity] : null;
+            if (message != null && message.byteSequenceNumber == this.headSequence + offset * this.segmentSize) {
+                if (!inRun) {
+                    runStart = message.byteSequenceNumber;
+                    inRun = true;
+                }
+                runEnd = message.byteSequenceNumber + message.dataLength;
+                continue;
+            }
+            if (!inRun) {
+                continue;
+            }
+            inRun = false;
+            boolean holdsLatest = TCPsequence.lessOrEqual(runStart, this.lastAdded) && TCPsequence.lessThan(this.lastAdded, runEnd);
+            if (count < maxBlocks) {
+                if (holdsLatest) {
+                    latest = count;
+                }
+                blocks[2 * count] = runStart;
+                blocks[2 * count + 1] = runEnd;
+                count++;
+            } else if (holdsLatest) {
+                // Out of blocks, the latest run takes the place of the highest one
+                latest = count - 1;
+                blocks[2 * latest] = runStart;
+                blocks[2 * latest + 1] = runEnd;
+                break;
+            }
+            if (count == maxBlocks && latest >= 0) {
+                break;
+            }
+        }
+
+        // Move the latest run to the front
+        if (latest > 0) {
+            int start = blocks[2 * latest];
+            int end = blocks[2 * latest + 1];
+            System.arraycopy(blocks, 0, blocks, 2, 2 * latest);
+            blocks[0] = start;
+            blocks[1] = end;
+        }
+        return count;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Line the slots up with the next expected byte, every slot it moved past is emptied.
+     * @param nextExpectedByte
+     */
+    private void advanceTo(int nextExpectedByte) {
+        int offset = TCPsequence.distance(this.headSequence, nextExpectedByte);
+        if (offset == 0) {
+            return;
+        }
+        if (offset < 0 || offset % this.segmentSize != 0 || offset / this.segmentSize >= this.capacity) {
+            // Moved past a short segment or the whole window, or started somewhere else, nothing held can be lined up anymore
+            java.util.Arrays.fill(this.slots, null);
+            this.size = 0;
+            this.headSlot = 0;
+        } else {
+            for (int moved = offset / this.segmentSize; moved > 0; moved--) {
+                if (this.slots[this.headSlot] != null) {
+                    this.slots[this.headSlot] = null;
+                    this.size--;
+                }
+                this.headSlot = (this.headSlot + 1) % this.capacity;
+            }
+        }
+        this.headSequence = nextExpectedByte;
+    }
+
+    private int slotOf(int byteSequenceNumber) {
+        return (this.headSlot + TCPsequence.distance(this.headSequence, byteSequenceNumber) / this.segmentSize) % this.capacity;
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ * This class holds the segments the sender has in flight, oldest first.
+ * It is a ring buffer indexed by byte sequence number rather than a list that has to be searched.
+ * -- Every segment except the last one of the file carries exactly segmentSize bytes.
+ * -- The oldest segment is in headSlot, a segment starting at byte sequence number S is (S - headSequence) / segmentSize slots after it.
+ * -- The offset is taken from the oldest segment rather than from byte 1, so it stays right when the sequence number wraps past 2^32.
+ * ACKs are cumulative, so segments are only ever retired from the oldest end of the window,
+ * and the span from the oldest to the newest segment can never be more than capacity segments.
+ * A retired segment stays in its slot so the message and its packet buffer can be reused by the segment that comes next into that slot.
+ * Segments the receiver reported in SACK blocks are flagged acknowledged but stay in the window until the cumulative ACK passes them,
+ * the flags are the scoreboard the sender picks the holes to resend from (RFC 6675).
+ * When the window is given a timer wheel, a segment's retransmission timer is stopped as soon as it is acknowledged either way.
+ */
+public class TCPsendWindow {
+
+    private TCPmessageStatus[] slots;
+    private int capacity;
+    private int segmentSize;
+    private int headSlot; // Slot of the oldest segment in the window
+    private int headSequence; // Byte sequence number of the oldest segment in the window
+    private int span; // Number of slots from the oldest to the newest segment
+    private int inFlight; // Number of segments not yet acknowledged
+    private int selectivelyAcknowledged; // Number of segments in the window the receiver reported in SACK blocks
+    private TCPtimerWheel timers; // Retransmission timers of the segments, null if the caller keeps none
+
+    public TCPsendWindow(int capacity, int segmentSize) {
+        this(capacity, segmentSize, null);
+    }
+
+    /**
+     * @param capacity most segments in flight
+     * @param segmentSize bytes in every segment but the last
+     * @param timers wheel the segments' retransmission timers run on, stopped here when a segment is acknowledged
+     */
+    public TCPsendWindow(int capacity, int segmentSize, TCPtimerWheel timers) {
+        this.capacity = capacity;
+        this.segmentSize = segmentSize;
+        this.slots = new TCPmessageStatus[capacity];
+        this.headSlot = 0;
+        this.headSequence = 1;
+        this.span = 0;
+        this.inFlight = 0;
+        this.selectivelyAcknowledged = 0;
+        this.timers = timers;
+    }
+
+    /**
+     * Add a newly sent segment at the end of the window.
+     * @param message segment to add, must directly follow the newest segment
+     * @return false if the window has no free slot
+     */
+    public boolean add(TCPmessageStatus message) {
+        if (this.span == this.capacity) {
+            return false;
+        }
+        if (this.span == 0) {
+            this.headSequence = message.byteSequenceNumber;
+        } else {
+            TCPmessageStatus newest = this.slots[(this.headSlot + this.span - 1) % this.capacity];
+            if (message.byteSequenceNumber != newest.byteSequenceNumber + newest.dataLength) {
+                throw new IllegalArgumentException("Segment " + TCPsequence.unsigned(message.byteSequenceNumber) + " does not follow the newest segment in the window");
+            }
+        }
+        this.slots[(this.headSlot + this.span) % this.capacity] = message;
+        this.span++;
+        this.inFlight++;
+        return true;
+    }
+
+    /**
+     * Get a message to reuse for the next segment.
+     * The slot the next segment goes into still holds the segment that was retired from it a full window ago.
+     * @return the retired message from that slot, or a new message while the window is first filling
+     */
+    public TCPmessageStatus recycle() {
+        TCPmessageStatus message = this.slots[(this.headSlot + this.span) % this.capacity];
+        if (message == null) {
+            message = new TCPmessageStatus(0, 0);
+        }
+        return message;
+    }
+
+    /**
+     * Retire every segment that ends at or below a cumulative acknowledgment number.
+     * @param acknowledgmentNumber next byte the receiver expects
+     * @return number of segments retired
+     */
+    public int removeAcknowledged(int acknowledgmentNumber) {
+        int retired = 0;
+        while (this.span > 0) {
+            TCPmessageStatus message = this.slots[this.headSlot];
+            if (TCPsequence.lessThan(acknowledgmentNumber, message.byteSequenceNumber + message.dataLength)) {
+                break;
+            }
+            this.inFlight--;
+            retired++;
+            if (this.timers != null) {
+                this.timers.cancel(message);
+            }
+            if (message.isAcknowledged()) {
+                this.selectivelyAcknowledged--;
+            }
+            this.headSlot = (this.headSlot + 1) % this.capacity;
+            this.headSequence = message.byteSequenceNumber + message.dataLength;
+            this.span--;
+        }
+        return retired;
+    }
+
+    /**
+     * Flag every segment that lies wholly inside a SACK block.
+     * @param start first byte of the block
+     * @param end byte after the block
+     * @return number of segments newly flagged
+     */
+    public int markSelectivelyAcknowledged(int start, int end) {
+        if (this.span == 0) {
+            return 0;
+        }
+        // Start from the first segment boundary at or after the block, nothing before the oldest segment is in the window
+        int offset = TCPsequence.distance(this.headSequence, start);
+        int position = offset <= 0 ? 0 : (offset + this.segmentSize - 1) / this.segmentSize;
+        int marked = 0;
+        for (; position < this.span; position++) {
+            TCPmessageStatus message = this.slots[(this.headSlot + position) % this.capacity];
+            if (TCPsequence.lessThan(end, message.byteSequenceNumber + message.dataLength)) {
+                break;
+            }
+            if (!message.isAcknowledged() && TCPsequence.lessOrEqual(start, message.byteSequenceNumber)) {
+                message.setAcknowledged();
+                this.selectivelyAcknowledged++;
+                if (this.timers != null) {
+                    this.timers.cancel(message);
+                }
+                marked++;
+            }
+        }
+        return marked;
+    }
+
+    /**
+     * Find the oldest hole that counts as lost, a segment not reported in a SACK block with at least threshold reported segments after it.
+     * Only a segment last sent before sentBefore is returned, so a hole is resent once per recovery.
+     * @param threshold number of reported segments after a hole that make it lost, 3 like duplicate ACKs
+     * @param sentBefore nanoTime the recovery started
+     * @return the segment or null if there is no such hole
+     */
+    public TCPmessageStatus findLost(int threshold, long sentBefore) {
+        if (this.selectivelyAcknowledged < threshold) {
+            return null;
+        }
+        TCPmessageStatus lost = null;
+        int after = 0;
+        for (int position = this.span - 1; position >= 0; position--) {
+            TCPmessageStatus message = this.slots[(this.headSlot + position) % this.capacity];
+            if (message.isAcknowledged()) {
+                after++;
+            } else if (after >= threshold && message.timestamp - sentBefore < 0) {
+                lost = message;
+            }
+        }
+        return lost;
+    }
+
+    /**
+     * Find the in-flight segment that starts at a byte sequence number.
+     * @param byteSequenceNumber
+     * @return the segment or null if it is not in flight
+     */
+    public TCPmessageStatus findBySequence(int byteSequenceNumber) {
+        int offset = TCPsequence.distance(this.headSequence, byteSequenceNumber);
+        if (this.span == 0 || offset < 0 || offset / this.segmentSize >= this.span) {
+            return null;
+        }
+        TCPmessageStatus message = this.slots[(this.headSlot + offset / this.segmentSize) % this.capacity];
+        if (message == null || message.byteSequenceNumber != byteSequenceNumber) {
+            return null;
+        }
+        return message;
+    }
+
+    /**
+     * Get the segment at a position in the window, 0 is the oldest.
+     * @param position
+     */
+    public TCPmessageStatus get(int position) {
+        if (position < 0 || position >= this.span) {
+            return null;
+        }
+        return this.slots[(this.headSlot + position) % this.capacity];
+    }
+
+    // Number of slots from the oldest to the newest segment
+    public int span() {
+        return this.span;
+    }
+
+    // Number of segments not yet acknowledged
+    public int size() {
+        return this.inFlight;
+    }
+
+    // Number of segments in the window the receiver reported in SACK blocks
+    public int selectivelyAcknowledged() {
+        return this.selectivelyAcknowledged;
+    }
+
+    public boolean isEmpty() {
+        return this.inFlight == 0;
+    }
+
+    public boolean isFull() {
+        return this.span == this.capacity;
+    }
+}
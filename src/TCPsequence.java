@@ -0,0 +1,37 @@
+/**
+ * Serial number arithmetic for the 32 bit byte sequence and acknowledgment numbers (RFC 1982).
+ * Sequence numbers wrap past 2^32 on long transfers, so they can't be compared with < and >.
+ * -- Two numbers are compared by the sign of their difference, which is right as long as they are less than 2^31 apart.
+ * -- Adding a length to a sequence number wraps on its own in int arithmetic.
+ * -- Sequence numbers are printed unsigned.
+ */
+public final class TCPsequence {
+
+    private TCPsequence() {
+    }
+
+    // a comes before b
+    public static boolean lessThan(int a, int b) {
+        return a - b < 0;
+    }
+
+    // a comes before b or is b
+    public static boolean lessOrEqual(int a, int b) {
+        return a - b <= 0;
+    }
+
+    // The later of a and b
+    public static int max(int a, int b) {
+        return a - b < 0 ? b : a;
+    }
+
+    // Number of bytes from a up to b, b must not come before a
+    public static int distance(int a, int b) {
+        return b - a;
+    }
+
+    // The sequence number as it is on the wire, 0 to 2^32 - 1
+    public static long unsigned(int sequenceNumber) {
+        return sequenceNumber & 0xFFFFFFFFL;
+    }
+}
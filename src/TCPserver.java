@@ -0,0 +1,301 @@
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * A receiver that serves many senders on one port and writes each transfer to its own file.
+ * On its own a server TCPconnection latches onto the first SYN and serves one transfer, the server puts one in front of many:
+ * -- One demultiplexer thread owns the channel and hands each datagram to the queue of the connection for its source address and port.
+ * -- A SYN from a source with no connection starts one, the connection runs the usual server state machine on a worker of a fixed pool.
+ *    Connections past the number of workers wait for one, their queue holds the client's packets meanwhile.
+ * -- A connection's queue is bounded like a socket's receive buffer, a datagram that finds it full is dropped and counted.
+ * -- Connections send their replies on the shared channel themselves.
+ * -- A finished connection's source is remembered for a short linger, so its late packets don't start a new connection.
+ * Each transfer is written to the -f name with the client's address and port before the extension, out_127.0.0.1_27003.bin.
+ * The server exits once it has had no connection for 60 seconds.
+ * A striped server instead receives one file split into byte ranges, one connection per range:
+ * every connection writes its range into the -f file at the range's offset, and the server exits once every range has arrived.
+ */
+public class TCPserver {
+
+    private static final long IDLE_EXIT_NANOS = 60 * 1000000000L; // No connection for this long ends the server
+    private static final long LINGER_NANOS = 2 * 1000000000L; // A finished connection's late packets are dropped for this long
+    private static final int MAX_WAITING_PER_WORKER = 4; // Connections that can wait for each worker, SYNs past that are refused
+
+    private String fileName; // Output file name the client's address and port are added to
+    private int communicationPort;
+    private int maxBytes; // Largest datagram expected
+    private int workers; // Connections served at once
+    private int queueCapacity; // Datagrams each connection's queue holds
+    private Function<TCPfileHandling, TCPconnection> connectionFactory; // Sets up a server connection with the receiver's options
+    private int stripes; // Number of ranges of a striped file, 0 when every client sends a file of its own
+    private BitSet stripesReceived = new BitSet(); // Ranges received in full, guarded by itself
+
+    private DatagramChannel channel;
+    private Selector selector;
+    private HashMap<InetSocketAddress, Connection> connections; // Only used by the demultiplexer thread
+    private ConcurrentLinkedQueue<Connection> finished; // Handed back by the workers as connections end
+    private int open; // Connections started and not yet finished
+
+    // Server statistics
+    private AtomicInteger transfersCompleted = new AtomicInteger(); // Connections that closed normally
+    private int connectionsStarted;
+    private int connectionsRefused; // SYNs dropped because too many connections were waiting
+    private long datagramsDropped; // Datagrams that found their connection's queue full
+    private long strayDatagrams; // Datagrams from a source with no connection that were not a SYN
+
+    /**
+     * One client being served.
+     */
+    private static final class Connection {
+        final InetSocketAddress client;
+        final ArrayBlockingQueue<byte[]> inbound;
+        long finishedAt; // nanoTime the connection ended, 0 while it runs, only used by the demultiplexer thread
+
+        Connection(InetSocketAddress client, int queueCapacity) {
+            this.client = client;
+            this.inbound = new ArrayBlockingQueue<byte[]>(queueCapacity);
+        }
+    }
+
+    /**
+     * @param fileName output file name, each client's transfer goes to this name with its address and port added
+     * @param communicationPort port the server listens on
+     * @param maxBytes largest datagram expected
+     * @param workers most connections served at once
+     * @param queueCapacity datagrams each connection's queue holds
+     * @param connectionFactory creates a server connection with the receiver's options for a file, null if the options are invalid
+     */
+    public TCPserver(String fileName, int communicationPort, int maxBytes, int workers, int queueCapacity, Function<TCPfileHandling, TCPconnection> connectionFactory) {
+        this.fileName = fileName;
+        this.communicationPort = communicationPort;
+        this.maxBytes = maxBytes;
+        this.workers = workers;
+        this.queueCapacity = queueCapacity;
+        this.connectionFactory = connectionFactory;
+        this.connections = new HashMap<InetSocketAddress, Connection>();
+        this.finished = new ConcurrentLinkedQueue<Connection>();
+    }
+
+    /**
+     * Receive one file split into byte ranges instead of a file per client, the -f file must already exist.
+     * @param count number of ranges, each one arrives on a connection of its own
+     */
+    public void setStripes(int count) {
+        this.stripes = count;
+    }
+
+    /**
+     * Serve senders until there has been no connection for 60 seconds, or for a striped file until every range has arrived.
+     * @return false if the port could not be opened
+     */
+    public boolean serve() {
+        try {
+            this.channel = DatagramChannel.open();
+            this.channel.bind(new InetSocketAddress(this.communicationPort));
+            this.channel.configureBlocking(false);
+            this.selector = Selector.open();
+            this.channel.register(this.selector, SelectionKey.OP_READ);
+        } catch (Exception e) {
+            System.out.println("Error creating socket: " + e.getMessage());
+            return false;
+        }
+        System.out.println("Serving senders on port " + this.communicationPort + " with " + this.workers + " workers...");
+
+        ExecutorService pool = Executors.newFixedThreadPool(this.workers);
+        ByteBuffer receiveView = ByteBuffer.allocate(this.maxBytes);
+        long lastActive = System.nanoTime();
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                retireFinished(now);
+                if (this.open > 0) {
+                    lastActive = now;
+                } else if (this.stripes > 0 && stripesComplete() == this.stripes) {
+                    System.out.println("All " + this.stripes + " ranges received, closing the port.");
+                    break;
+                } else if (now - lastActive > IDLE_EXIT_NANOS) {
+                    System.out.println("No connection for 60 seconds, closing the port.");
+                    break;
+                }
+
+                // Wait for a datagram, waking up now and then to retire finished connections
+                receiveView.clear();
+                InetSocketAddress source = (InetSocketAddress) this.channel.receive(receiveView);
+                if (source == null) {
+                    this.selector.select(100);
+                    this.selector.selectedKeys().clear();
+                    continue;
+                }
+                dispatch(source, receiveView.array(), receiveView.position(), pool);
+            }
+        } catch (Exception e) {
+            System.out.println("Error receiving on the server: " + e.getMessage());
+        } finally {
+            // Let the running connections finish before the channel they send on is closed
+            pool.shutdown();
+            try {
+                pool.awaitTermination(1, TimeUnit.HOURS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                this.selector.close();
+                this.channel.close();
+            } catch (Exception e) {
+                System.out.println("Error closing sockets: " + e.getMessage());
+            }
+        }
+        printStatistics();
+        return true;
+    }
+
+    /**
+     * Hand a datagram to its connection, a SYN from a new source starts one.
+     */
+    private void dispatch(InetSocketAddress source, byte[] packet, int length, ExecutorService pool) {
+        Connection connection = this.connections.get(source);
+        if (connection == null) {
+            if (isSyn(packet, length) == false) {
+                this.strayDatagrams++;
+                return;
+            }
+            if (this.open >= this.workers * MAX_WAITING_PER_WORKER) {
+                this.connectionsRefused++;
+                return;
+            }
+            connection = new Connection(source, this.queueCapacity);
+            this.connections.put(source, connection);
+            this.open++;
+            this.connectionsStarted++;
+            final Connection started = connection;
+            pool.execute(() -> run(started));
+        }
+        if (connection.finishedAt != 0) {
+            return; // Late packet of a finished connection
+        }
+        // Every datagram gets its own array, the receive buffer is reused straight away
+        if (connection.inbound.offer(Arrays.copyOf(packet, length)) == false) {
+            this.datagramsDropped++;
+        }
+    }
+
+    /**
+     * Serve one client on a worker thread, from its SYN to its FIN.
+     */
+    private void run(Connection connection) {
+        try {
+            // The ranges of a striped file all go into the one file, each connection opens it for itself
+            TCPfileHandling fileHandler = new TCPfileHandling(this.stripes > 0 ? this.fileName : outputFileName(connection.client));
+            if (this.stripes > 0 || fileHandler.startupVerifyFolderFile(true)) {
+                TCPconnection tcpConnect = this.connectionFactory.apply(fileHandler);
+                if (tcpConnect != null && (this.stripes == 0 || tcpConnect.expectStripes(this.stripes))) {
+                    tcpConnect.attachToServer(this.channel, connection.inbound, connection.client);
+                    if (tcpConnect.performTCPcommunication()) {
+                        this.transfersCompleted.incrementAndGet();
+                        long[] stripe = tcpConnect.getStripe();
+                        // A range only counts once all of its bytes were written
+                        if (stripe != null && tcpConnect.getTotalData() == stripe[1]) {
+                            synchronized (this.stripesReceived) {
+                                this.stripesReceived.set((int) stripe[2]);
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Connection from " + connection.client + " failed: " + e.getMessage());
+        } finally {
+            this.finished.add(connection);
+            this.selector.wakeup();
+        }
+    }
+
+    // Mark connections the workers finished, and forget the ones whose linger is over
+    private void retireFinished(long now) {
+        Connection connection;
+        while ((connection = this.finished.poll()) != null) {
+            connection.finishedAt = now;
+            connection.inbound.clear();
+            this.open--;
+        }
+        if (this.connections.size() > this.open) {
+            Iterator<Connection> iterator = this.connections.values().iterator();
+            while (iterator.hasNext()) {
+                connection = iterator.next();
+                if (connection.finishedAt != 0 && now - connection.finishedAt > LINGER_NANOS) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    // Number of ranges of the striped file received in full
+    public int getStripesReceived() {
+        return stripesComplete();
+    }
+
+    // Number of ranges of the striped file received in full, read under the lock the workers set them with
+    private int stripesComplete() {
+        synchronized (this.stripesReceived) {
+            return this.stripesReceived.cardinality();
+        }
+    }
+
+    // A new connection only starts on a valid SYN
+    private boolean isSyn(byte[] packet, int length) {
+        try {
+            TCPmessageStatus message = new TCPmessageStatus(packet, length);
+            return message.message.checksumValid && message.verifyFlags(1, 0, 0);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the file a client's transfer is written to, the address and port go before the extension.
+     * A client that sends again from the same port gets a numbered file rather than overwriting the last one.
+     * @param client
+     */
+    private String outputFileName(InetSocketAddress client) {
+        int separator = this.fileName.lastIndexOf(File.separatorChar);
+        int dot = this.fileName.lastIndexOf('.');
+        if (dot <= separator + 1) {
+            dot = this.fileName.length();
+        }
+        String base = this.fileName.substring(0, dot) + "_" + client.getAddress().getHostAddress().replace(':', '-') + "_" + client.getPort();
+        String extension = this.fileName.substring(dot);
+        String name = base + extension;
+        for (int copy = 2; new File(name).exists(); copy++) {
+            name = base + "_" + copy + extension;
+        }
+        return name;
+    }
+
+    public void printStatistics() {
+        System.out.println("---------------------------------");
+        System.out.println("TCP Server statistics:");
+        System.out.println("Connections started: " + this.connectionsStarted);
+        System.out.println("Transfers completed: " + this.transfersCompleted.get());
+        System.out.println("Connections refused: " + this.connectionsRefused);
+        System.out.println("Datagrams dropped on full connection queues: " + this.datagramsDropped);
+        System.out.println("Datagrams from unknown senders: " + this.strayDatagrams);
+        if (this.stripes > 0) {
+            System.out.println("Ranges received: " + stripesComplete() + " of " + this.stripes);
+        }
+    }
+}
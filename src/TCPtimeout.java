@@ -1,33 +1,75 @@
+/**
+ * Retransmission timer (RFC 6298), all times in nanoseconds.
+ * -- Before any round trip time is measured the timeout is 1 second, the handshake's sample seeds the estimate.
+ * -- Each sample updates the smoothed round trip time SRTT and its variation RTTVAR, the timeout is SRTT + 4 * RTTVAR.
+ * -- The timeout is kept between 200 milliseconds and 60 seconds. RFC 6298 asks for at least 1 second,
+ *    200 milliseconds is what TCP stacks use in practice and still well above the delayed ACK of the receiver.
+ * -- Every timeout doubles the timeout (backOff) until the next sample, so a path that went quiet isn't flooded.
+ * -- ACKs echo the timestamp of the copy of a segment that reached the receiver, so a resent segment's ACK is a sample too
+ *    and Karn's rule isn't needed (RFC 7323), the timeout doesn't stay backed off while the holes of a loss are being filled.
+ */
+public class TCPtimeout {
 
+    public static final long INITIAL_TIMEOUT = 1000000000L; // 1 second
+    public static final long MIN_TIMEOUT = 200000000L; // 200 milliseconds
+    public static final long MAX_TIMEOUT = 60 * 1000000000L; // 60 seconds
+    private static final long CLOCK_GRANULARITY = 1000000L; // 1 millisecond, the least the variation adds to the timeout
 
-
-public class TCPtimeout {
-    //nanoseconds
-    private long startTime; 
-    public long timeOutTimer; 
-    private long ERTT;
-    private long EDEV;
+    private long startTime;
+    public long timeOutTimer; // Current timeout
+    private long SRTT; // Smoothed round trip time, 0 before the first sample
+    private long RTTVAR; // Round trip time variation
+    private int backOffs; // Timeouts since the last sample
 
     public TCPtimeout() {
-        // 5 seconds in nanoseconds
-        this.timeOutTimer = 5 * 1000000000L;
+        this.timeOutTimer = INITIAL_TIMEOUT;
+        this.SRTT = 0;
+        this.RTTVAR = 0;
+        this.backOffs = 0;
         this.startTime = System.nanoTime();
     }
 
+    /**
+     * Add a round trip time sample from an ACK, the segment may have been resent since the ACK echoes the send time of the copy it answers.
+     * @param receivedTime nanoTime the ACK arrived
+     * @param sentTime nanoTime the copy of the segment that reached the receiver was sent, echoed in the ACK
+     */
     public void updateTimeOut(long receivedTime, long sentTime) {
-        long SRTT = Math.abs(receivedTime - sentTime);
-        long SDEV = Math.abs(SRTT - this.ERTT);
-        this.ERTT = (long) (0.875 * this.ERTT + 0.125 * SRTT);
-        this.EDEV = (long) (0.75 * this.EDEV + 0.25 * SDEV);
-        // Set timeout value
-        this.timeOutTimer = this.ERTT + 4 * this.EDEV;
+        long R = receivedTime - sentTime;
+        if (R <= 0) {
+            return; // Not a time this end could have sent at
+        }
+        if (this.SRTT == 0) {
+            updateTimeOutZero(receivedTime, sentTime);
+            return;
+        }
+        // RTTVAR uses the SRTT from before this sample (RFC 6298, 2.3)
+        this.RTTVAR = (3 * this.RTTVAR + Math.abs(this.SRTT - R)) / 4;
+        this.SRTT = (7 * this.SRTT + R) / 8;
+        setFromEstimate();
     }
 
+    /**
+     * Start the estimate from the first sample, the handshake's.
+     * @param receivedTime nanoTime the reply arrived
+     * @param sentTime nanoTime the packet was sent, echoed in the reply
+     */
     public void updateTimeOutZero(long receivedTime, long sentTime) {
-        this.ERTT = Math.abs(receivedTime - sentTime);
-        this.EDEV = 0;
-        // Set timeout value
-        this.timeOutTimer = 2 * this.ERTT;
+        long R = receivedTime - sentTime;
+        if (R <= 0) {
+            return;
+        }
+        this.SRTT = R;
+        this.RTTVAR = R / 2;
+        setFromEstimate();
+    }
+
+    /**
+     * Double the timeout after it expired, up to the maximum. The next sample sets it from the estimate again.
+     */
+    public void backOff() {
+        this.backOffs++;
+        this.timeOutTimer = Math.min(this.timeOutTimer * 2, MAX_TIMEOUT);
     }
 
     public void setTimeOut(long timeOut) { // in milliseconds
@@ -37,15 +79,37 @@ public class TCPtimeout {
         this.timeOutTimer = timeOut;
     }
 
+    /**
+     * Get the time a packet sent at sentTime times out, in nanoseconds.
+     * @param sentTime
+     */
+    public long getDeadline(long sentTime) {
+        return sentTime + this.timeOutTimer;
+    }
+
     public boolean isTimedOut(long currentTime, long sentTime) {
-        long rtt = Math.abs(currentTime - sentTime);
-        // Check if the timeout has occurred
-        if (rtt > this.timeOutTimer) {
-            return true; // Timeout occurred
-        } else {
-            return false; // No timeout
-        }
-        
+        // nanoTime differences are compared, never their absolute value, a packet sent after currentTime hasn't timed out
+        return currentTime - sentTime > this.timeOutTimer;
+    }
+
+    // Current timeout in nanoseconds
+    public long getTimeOut() {
+        return this.timeOutTimer;
+    }
+
+    // Timeouts since the last sample
+    public int getBackOffs() {
+        return this.backOffs;
+    }
+
+    // Smoothed round trip time in nanoseconds, 0 before the first sample
+    public long getSmoothedRtt() {
+        return this.SRTT;
+    }
+
+    // Round trip time variation in nanoseconds
+    public long getRttVariation() {
+        return this.RTTVAR;
     }
 
     public long getStartTime() {
@@ -53,5 +117,9 @@ public class TCPtimeout {
         return this.startTime;
     }
 
-
-}
\ No newline at end of file
+    private void setFromEstimate() {
+        this.backOffs = 0;
+        long timeOut = this.SRTT + Math.max(CLOCK_GRANULARITY, 4 * this.RTTVAR);
+        this.timeOutTimer = Math.min(Math.max(timeOut, MIN_TIMEOUT), MAX_TIMEOUT);
+    }
+}
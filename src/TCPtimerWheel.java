@@ -0,0 +1,163 @@
+/**
+ * Retransmission timers of the segments in flight, one per segment, kept in a hashed timer wheel.
+ * Scanning the whole send window for timed out segments on every packet costs O(window), the wheel makes every operation O(1):
+ * -- Time is cut into ticks, a timer goes into the slot of the tick its deadline falls in, modulo the number of slots.
+ *    A deadline further away than one turn of the wheel shares its slot with nearer ones and is skipped until its turn comes.
+ * -- Each slot is a doubly linked list threaded through the messages themselves, so scheduling and cancelling allocate nothing.
+ * -- A bit per slot marks the ones holding timers, finding the next one to wake up for skips empty slots 64 at a time.
+ * Timers fire up to one tick late, never early.
+ */
+public class TCPtimerWheel {
+
+    private TCPmessageStatus[] slots; // Head of the list of timers in each slot
+    private long[] occupied; // Bit per slot, set while the slot holds a timer
+    private int mask; // Slots - 1, the number of slots is a power of 2
+    private long tickNanos;
+    private long origin; // nanoTime of tick 0
+    private long currentTick; // Tick the wheel has expired timers up to, slots before it have been passed
+    private int size; // Timers running
+
+    /**
+     * @param tickNanos length of a tick in nanoseconds, how late a timer may fire
+     * @param slotCount number of slots, rounded up to a power of 2 and at least 64, covering slotCount ticks per turn
+     */
+    public TCPtimerWheel(long tickNanos, int slotCount) {
+        int count = 64;
+        while (count < slotCount) {
+            count *= 2;
+        }
+        this.slots = new TCPmessageStatus[count];
+        this.occupied = new long[count / 64];
+        this.mask = count - 1;
+        this.tickNanos = tickNanos;
+        this.origin = System.nanoTime();
+        this.currentTick = 0;
+        this.size = 0;
+    }
+
+    /**
+     * Start the timer of a message, or move it if it is already running.
+     * @param message
+     * @param deadline nanoTime the message times out
+     */
+    public void schedule(TCPmessageStatus message, long deadline) {
+        if (message.timerSlot >= 0) {
+            cancel(message);
+        }
+        // A deadline already passed goes into the current slot so the next expire finds it
+        long tick = Math.max(tickOf(deadline), this.currentTick);
+        int slot = (int) (tick & this.mask);
+        message.timerDeadline = deadline;
+        message.timerSlot = slot;
+        message.timerPrev = null;
+        message.timerNext = this.slots[slot];
+        if (message.timerNext != null) {
+            message.timerNext.timerPrev = message;
+        }
+        this.slots[slot] = message;
+        this.occupied[slot >>> 6] |= 1L << slot;
+        this.size++;
+    }
+
+    /**
+     * Stop the timer of a message, nothing happens if it isn't running.
+     * @param message
+     */
+    public void cancel(TCPmessageStatus message) {
+        int slot = message.timerSlot;
+        if (slot < 0) {
+            return;
+        }
+        if (message.timerPrev != null) {
+            message.timerPrev.timerNext = message.timerNext;
+        } else {
+            this.slots[slot] = message.timerNext;
+            if (message.timerNext == null) {
+                this.occupied[slot >>> 6] &= ~(1L << slot);
+            }
+        }
+        if (message.timerNext != null) {
+            message.timerNext.timerPrev = message.timerPrev;
+        }
+        message.timerNext = null;
+        message.timerPrev = null;
+        message.timerSlot = -1;
+        this.size--;
+    }
+
+    /**
+     * Take one timed out message off the wheel, call until it returns null to get them all.
+     * @param now nanoTime
+     * @return a message whose deadline is at or before now, its timer stopped, or null if there is none
+     */
+    public TCPmessageStatus expire(long now) {
+        long nowTick = tickOf(now);
+        // After more than a turn every slot is passed once, earlier turns have nothing left to find
+        if (nowTick - this.currentTick > this.mask) {
+            this.currentTick = nowTick - this.mask;
+        }
+        while (this.size > 0) {
+            int slot = (int) (this.currentTick & this.mask);
+            int skip = nextOccupied(slot);
+            if (this.currentTick + skip > nowTick) {
+                break;
+            }
+            this.currentTick += skip;
+            slot = (int) (this.currentTick & this.mask);
+            for (TCPmessageStatus message = this.slots[slot]; message != null; message = message.timerNext) {
+                if (message.timerDeadline - now <= 0) {
+                    cancel(message);
+                    return message;
+                }
+            }
+            // The rest of the current tick's timers are not due yet, the wheel can't move past it
+            if (this.currentTick == nowTick) {
+                break;
+            }
+            this.currentTick++;
+        }
+        this.currentTick = Math.max(this.currentTick, nowTick);
+        return null;
+    }
+
+    /**
+     * Get when to wake up for the next timer, the end of the first tick holding one.
+     * A slot can also hold timers for later turns of the wheel, waking up for those finds nothing and costs one pass.
+     * @return nanoTime, or 0 if no timer is running
+     */
+    public long nextDeadline() {
+        if (this.size == 0) {
+            return 0;
+        }
+        long tick = this.currentTick + nextOccupied((int) (this.currentTick & this.mask));
+        return this.origin + (tick + 1) * this.tickNanos;
+    }
+
+    // Number of timers running
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    private long tickOf(long time) {
+        return Math.floorDiv(time - this.origin, this.tickNanos);
+    }
+
+    // Slots from slot to the next one holding a timer, going round the wheel, the wheel must not be empty
+    private int nextOccupied(int slot) {
+        int word = slot >>> 6;
+        long bits = this.occupied[word] & (-1L << slot);
+        for (int searched = 0; searched <= this.occupied.length; searched++) {
+            if (bits != 0) {
+                int found = (word << 6) + Long.numberOfTrailingZeros(bits);
+                return (found - slot) & this.mask;
+            }
+            word = (word + 1) % this.occupied.length;
+            bits = this.occupied[word];
+        }
+        throw new IllegalStateException("Timer wheel has " + this.size + " timers but no occupied slot");
+    }
+}